@@ -0,0 +1,151 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Measures commands per second and bytes allocated per command for parsing
+ * alone, code generation alone and the full VMTranslator pipeline on each
+ * VMCorpus profile.
+ *
+ * javac -d bin src/*.java bench/*.java
+ * java -cp bin TranslatorBenchmark [--commands N] [--warmup N] [--iterations N] [translator options]
+ */
+public class TranslatorBenchmark {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final TranslatorOptions options;
+    private final int warmup;
+    private final int iterations;
+
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>();
+        TranslatorOptions options;
+        int numCommands = 1_000_000;
+        int warmup = 5;
+        int iterations = 10;
+
+        try {
+            options = TranslatorOptions.parse(args, arguments);
+        } catch (IllegalArgumentException e) {  // invalid option value
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        for (int i = 0; i < arguments.size(); i++) {
+            switch (arguments.get(i)) {
+                case "--commands":
+                    numCommands = Integer.parseInt(arguments.get(++i));
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(arguments.get(++i));
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(arguments.get(++i));
+                    break;
+                default:
+                    System.out.println("Unknown option \"" + arguments.get(i) + "\"!");
+                    return;
+            }
+        }
+
+        File directory = File.createTempFile("vmcorpus", "");
+        directory.delete();
+        directory.mkdirs();
+
+        TranslatorBenchmark benchmark = new TranslatorBenchmark(options, warmup, iterations);
+        VMCorpus corpus = new VMCorpus(42);
+
+        System.out.printf("%-12s %-10s %14s %14s%n", "profile", "phase", "commands/s", "bytes/command");
+
+        for (String profile : VMCorpus.PROFILES) {
+            File file = corpus.generate(profile, numCommands, directory);
+            benchmark.run(profile, file, corpus.getNumCommands());
+            file.delete();
+        }
+
+        new File(directory, "Benchmark.asm").delete();
+        directory.delete();
+    }
+
+    /**
+     * Creates a benchmark
+     * @param options Code generation options used for every run
+     * @param warmup Number of untimed iterations before measuring
+     * @param iterations Number of timed iterations
+     */
+    public TranslatorBenchmark(TranslatorOptions options, int warmup, int iterations) {
+        this.options = options;
+        this.warmup = warmup;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Benchmarks the three phases on one file and prints a line for each
+     * @param profile Name of the corpus profile
+     * @param file Generated .vm file
+     * @param numCommands Number of commands in the file
+     */
+    public void run(String profile, File file, int numCommands) {
+        VMModule module = parse(file);
+        File outputFile = new File(file.getParentFile(), "Benchmark.asm");
+
+        measure(profile, "parse", numCommands, () -> parse(file));
+        measure(profile, "codegen", numCommands, () -> {
+            CodeWriter writer = new CodeWriter(new AsciiWriter(), options);
+            writer.writeModule(module);
+        });
+        measure(profile, "translate", numCommands, () -> {
+            VMTranslator translator = new VMTranslator(outputFile, options);
+            translator.translateFile(file);
+            translator.close();
+        });
+    }
+
+    /**
+     * Runs a phase for the warmup and timed iterations and prints its
+     * throughput and allocation
+     * @param profile Name of the corpus profile
+     * @param phase Name of the phase
+     * @param numCommands Number of commands processed per iteration
+     * @param body Phase to run
+     */
+    private void measure(String profile, String phase, int numCommands, Runnable body) {
+        for (int i = 0; i < warmup; i++)
+            body.run();
+
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < iterations; i++)
+            body.run();
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        double commands = (double) numCommands * iterations;
+
+        System.out.printf("%-12s %-10s %14.0f %14.1f%n", profile, phase,
+                commands / (elapsed / 1e9), allocated / commands);
+    }
+
+    /**
+     * Parses a file into the intermediate representation
+     * @param file File to be parsed
+     * @return Parsed module
+     */
+    private static VMModule parse(File file) {
+        Parser parser = new Parser(file);
+        VMModule module = parser.parseModule();
+
+        try {
+            parser.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to close file!");
+        }
+
+        return module;
+    }
+}
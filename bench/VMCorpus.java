@@ -0,0 +1,147 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Random;
+
+/*
+ * Generates synthetic .vm files for benchmarking. Each profile stresses a
+ * different part of the translator.
+ */
+public class VMCorpus {
+    public static final String[] PROFILES = { "arithmetic", "call", "branch", "static" };
+
+    private static final String[] BINARY = { "add", "sub", "and", "or", "eq", "gt", "lt" };
+    private static final String[] UNARY = { "neg", "not" };
+    private static final String[] SEGMENTS = { "local", "argument", "this", "that", "temp" };
+    private static final int COMMANDS_PER_FUNCTION = 200;
+
+    private final Random random;
+    private Writer writer;
+    private int numCommands;
+
+    public static void main(String[] args) {
+        if (args.length != 3) { // check if there is a valid number of arguments
+            System.out.println("Usage: VMCorpus profile numCommands directory");
+            return;
+        }
+
+        File directory = new File(args[2]);
+        directory.mkdirs();
+
+        File file = new VMCorpus(42).generate(args[0], Integer.parseInt(args[1]), directory);
+        System.out.println("Wrote " + file);
+    }
+
+    /**
+     * Creates a generator with a fixed seed so every run sees the same corpus
+     * @param seed Random seed
+     */
+    public VMCorpus(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Writes a .vm file with roughly the given number of commands
+     * @param profile One of PROFILES
+     * @param numCommands Number of commands to generate
+     * @param directory Directory the file is written to
+     * @return Generated file
+     */
+    public File generate(String profile, int numCommands, File directory) {
+        String className = Character.toUpperCase(profile.charAt(0)) + profile.substring(1);
+        File file = new File(directory, className + ".vm");
+        this.numCommands = 0;
+
+        try (Writer output = new BufferedWriter(new FileWriter(file))) {
+            writer = output;
+
+            for (int function = 0; this.numCommands < numCommands; function++) {
+                write("function " + className + ".f" + function + " 2");
+
+                switch (profile) {
+                    case "arithmetic":
+                        writeArithmeticBody();
+                        break;
+                    case "call":
+                        writeCallBody(className, function);
+                        break;
+                    case "branch":
+                        writeBranchBody();
+                        break;
+                    case "static":
+                        writeStaticBody();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown profile \"" + profile + "\"!");
+                }
+
+                write("push constant 0");
+                write("return");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write corpus file!");
+        }
+
+        return file;
+    }
+
+    /**
+     * Returns the number of commands written by the last call to generate,
+     * including function headers
+     * @return Number of commands
+     */
+    public int getNumCommands() {
+        return numCommands;
+    }
+
+    private void writeArithmeticBody() throws IOException {
+        for (int i = 0; i < COMMANDS_PER_FUNCTION; i += 4) {
+            write("push constant " + random.nextInt(32768));
+            write("push " + SEGMENTS[random.nextInt(SEGMENTS.length)] + " " + random.nextInt(8));
+            write(BINARY[random.nextInt(BINARY.length)]);
+            write(UNARY[random.nextInt(UNARY.length)]);
+            write("pop " + SEGMENTS[random.nextInt(SEGMENTS.length)] + " " + random.nextInt(8));
+        }
+    }
+
+    private void writeCallBody(String className, int function) throws IOException {
+        for (int i = 0; i < COMMANDS_PER_FUNCTION; i += 4) {
+            int numArgs = random.nextInt(4);
+
+            for (int arg = 0; arg < numArgs; arg++)
+                write("push argument " + arg);
+
+            write("call " + className + ".f" + random.nextInt(function + 1) + " " + numArgs);
+            write("pop temp 0");
+        }
+    }
+
+    private void writeBranchBody() throws IOException {
+        for (int i = 0; i < COMMANDS_PER_FUNCTION; i += 8) {
+            write("label LOOP_" + i);
+            write("push local 0");
+            write("push constant " + random.nextInt(100));
+            write(BINARY[4 + random.nextInt(3)]);   // eq, gt or lt
+            write("if-goto END_" + i);
+            write("goto LOOP_" + i);
+            write("label END_" + i);
+        }
+    }
+
+    private void writeStaticBody() throws IOException {
+        for (int i = 0; i < COMMANDS_PER_FUNCTION; i += 3) {
+            write("push static " + random.nextInt(64));
+            write("push static " + random.nextInt(64));
+            write("add");
+            write("pop static " + random.nextInt(64));
+        }
+    }
+
+    private void write(String command) throws IOException {
+        writer.write(command);
+        writer.write('\n');
+        numCommands++;
+    }
+}
@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Writer that stores ASCII text as bytes without a charset encoder, either
+ * flushing to a channel or growing in memory
+ */
+public class AsciiWriter extends Writer {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private byte[] buffer;
+    private ByteBuffer channelBuffer;
+    private int count;
+
+    /**
+     * Creates a writer that keeps all text in memory
+     */
+    public AsciiWriter() {
+        this(null);
+    }
+
+    /**
+     * Creates a writer that flushes to a channel whenever the buffer fills
+     * @param channel Channel to write to, or null to keep the text in memory
+     */
+    public AsciiWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer = new byte[BUFFER_SIZE];
+        channelBuffer = ByteBuffer.wrap(buffer);
+    }
+
+    /**
+     * Encodes a string once so it can be written with write(byte[])
+     * @param text ASCII text
+     * @return Encoded bytes
+     */
+    public static byte[] encode(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Writes pre-encoded bytes
+     * @param bytes Bytes from encode()
+     */
+    public void write(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, count, bytes.length);
+        count += bytes.length;
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        ensureCapacity(len);
+
+        for (int i = 0; i < len; i++)
+            buffer[count++] = (byte) cbuf[off + i];
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        ensureCapacity(len);
+
+        for (int i = 0; i < len; i++)
+            buffer[count++] = (byte) str.charAt(off + i);
+    }
+
+    /**
+     * Appends the text of an in-memory writer to this writer
+     * @param code Writer whose text is appended
+     */
+    public void write(AsciiWriter code) {
+        ensureCapacity(code.count);
+        System.arraycopy(code.buffer, 0, buffer, count, code.count);
+        count += code.count;
+    }
+
+    /**
+     * Passes the text of this in-memory writer to another writer
+     * @param writer Writer that receives the text
+     * @throws IOException
+     */
+    public void writeTo(Writer writer) throws IOException {
+        for (int i = 0; i < count; i++)
+            writer.write(buffer[i]);
+    }
+
+    /**
+     * Writes the buffered bytes to the channel, if there is one
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        if (channel == null)
+            return;
+
+        channelBuffer.clear().limit(count);
+
+        while (channelBuffer.hasRemaining())
+            channel.write(channelBuffer);
+
+        count = 0;
+    }
+
+    /**
+     * Flushes and closes the channel, if there is one
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+
+        if (channel != null)
+            channel.close();
+    }
+
+    /**
+     * Makes room for more bytes by flushing to the channel or by growing
+     * the buffer
+     * @param length Number of bytes to be written
+     */
+    private void ensureCapacity(int length) {
+        if (count + length <= buffer.length)
+            return;
+
+        if (channel != null) {
+            try {
+                flush();
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to write to output file!");
+            }
+
+            if (length <= buffer.length)
+                return;
+        }
+
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        channelBuffer = ByteBuffer.wrap(buffer);
+    }
+}
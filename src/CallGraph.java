@@ -0,0 +1,83 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Call graph of a whole program, built from the call commands of every
+ * function in its modules
+ */
+public class CallGraph {
+    private final Map<String, Set<String>> callees;
+    private final Set<String> unnamedCallees;
+
+    /**
+     * Builds the call graph of a program
+     * @param modules Modules of every file in the program
+     */
+    public CallGraph(List<VMModule> modules) {
+        callees = new HashMap<>();
+        unnamedCallees = new LinkedHashSet<>();
+
+        for (VMModule module : modules) {
+            for (VMFunction function : module.getFunctions()) {
+                Set<String> called = function.getName() == null ? unnamedCallees : new LinkedHashSet<>();
+
+                for (int i = 0; i < function.size(); i++) {
+                    if (function.getOpcode(i) == Opcode.CALL)
+                        called.add(function.getLabel(i));
+                }
+
+                if (function.getName() != null) {
+                    callees.put(function.getName(), called);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if the program defines a function
+     * @param name Function name
+     * @return True if the function is defined
+     */
+    public boolean contains(String name) {
+        return callees.containsKey(name);
+    }
+
+    /**
+     * Returns the functions called by a function
+     * @param name Function name
+     * @return Names of the called functions, empty if the function is not
+     * defined
+     */
+    public Set<String> getCallees(String name) {
+        Set<String> called = callees.get(name);
+        return called == null ? new LinkedHashSet<>() : called;
+    }
+
+    /**
+     * Returns the functions reachable from a root function and from commands
+     * outside of any function
+     * @param root Name of the function the program starts in
+     * @return Names of the reachable functions, including the root
+     */
+    public Set<String> getReachableFunctions(String root) {
+        Set<String> reachable = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+
+        pending.push(root);
+        pending.addAll(unnamedCallees);
+
+        while (!pending.isEmpty()) {
+            String name = pending.pop();
+
+            if (reachable.add(name))    // visit each function once
+                pending.addAll(getCallees(name));
+        }
+
+        return reachable;
+    }
+}
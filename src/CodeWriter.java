@@ -1,26 +1,119 @@
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
 
 public class CodeWriter {
-    private BufferedWriter writer;
+    // instruction sequences used by almost every command, encoded once
+    private static final byte[] PUSH_DATA = AsciiWriter.encode("@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final byte[] POP_DATA = AsciiWriter.encode("@SP\nM=M-1\nA=M\nD=M\n");
+    private static final byte[] BINARY_HEADER = AsciiWriter.encode("@SP\nM=M-1\nA=M\nD=M\nA=A-1\n");
+    private static final byte[] SPILL_DATA = AsciiWriter.encode("@SP\nM=M+1\nA=M-1\nM=D\n");
+    private static final byte[] PUSH_SLOT = AsciiWriter.encode("@SP\nM=M+1\nA=M-1\n");
+    private static final int MAX_POINTER_STEPS = 2;     // cheaper than @R / D=M / @i / A=D+A
+    private static final int POP_DATA_COST = 4;
+    private static final int INDIRECT_POP_COST = 14;    // address via R13 (and R14 if cached)
+    private static final int MAX_PUSH_BATCH = 8;
+    private static final int FULL_FRAME_SIZE = 5;       // return address, LCL, ARG, THIS, THAT
+    private static final int REDUCED_FRAME_SIZE = 3;    // return address, LCL, ARG
+
+    private AsciiWriter output;
+    private Writer writer;
+    private PeepholeOptimizer peepholeOptimizer;
+    private HackBinaryWriter binaryWriter;
     private String filename;
-    private int numLabels, numIfGotoLabels, numReturnLabels, numFunctLabels;
+    private String labelPrefix;
+    private int numLabels, numReturnLabels, numFunctLabels;
     private String currentFunctionName;
+    private TranslatorOptions options;
+    private boolean topOfStackInD;  // top of stack is held in D, not in RAM
+    private Set<String> reducedFrameFunctions = new HashSet<>();
+    private final Set<String> usedRoutines = new HashSet<>();  // shared routines that are jumped to
+    private boolean writesRoutines;     // this writer wrote the init code and owns the routines
+    private StaticAllocator staticAllocator;
+    private int[] staticAddresses;  // addresses of the statics of the current file
+    private final char[] digits = new char[11];
 
     public CodeWriter(File outputFile) {
-        if (outputFile == null) {   // check if output file is null
-            throw new IllegalArgumentException("Output file should not be null!");
+        this(outputFile, new TranslatorOptions());
+    }
+
+    public CodeWriter(File outputFile, TranslatorOptions options) {
+        this(openOutputFile(outputFile), options, options.isBinaryOutput());
+    }
+
+    /**
+     * Creates a code writer that writes to an ASCII writer, e.g. an in-memory
+     * buffer when files are translated in parallel
+     * @param output Writer for the assembly code
+     * @param options Code generation options
+     */
+    public CodeWriter(AsciiWriter output, TranslatorOptions options) {
+        this(output, options, false);
+    }
+
+    /**
+     * Creates a code writer that writes assembly code or machine code
+     * @param output Writer for the output file
+     * @param options Code generation options
+     * @param binary True to write a .hack file instead of assembly code
+     */
+    private CodeWriter(AsciiWriter output, TranslatorOptions options, boolean binary) {
+        this.output = output;
+        writer = output;
+
+        if (binary) {   // encode instructions instead of writing their text
+            binaryWriter = new HackBinaryWriter(output);
+            writer = binaryWriter;
         }
 
-        try {
-            writer = new BufferedWriter(new FileWriter(outputFile));
-        } catch (IOException e) {   // file error
-            throw new IllegalStateException("File could not be created, is directory, or cannot be opened!");
+        if (options.isPeephole()) {  // filter instructions through the optimizer
+            peepholeOptimizer = new PeepholeOptimizer(writer);
+            writer = peepholeOptimizer;
         }
 
         currentFunctionName = "";
+        labelPrefix = "";
+        this.options = options;
+    }
+
+    /**
+     * Returns the peephole optimizer filtering the output
+     * @return Peephole optimizer, or null if it is disabled
+     */
+    public PeepholeOptimizer getPeepholeOptimizer() {
+        return peepholeOptimizer;
+    }
+
+    /**
+     * Sets the functions that are called with a reduced frame, which does
+     * not save THIS and THAT. Every call to them must be translated with
+     * the same set.
+     * @param reducedFrameFunctions Names of functions that never pop pointer
+     */
+    public void setReducedFrameFunctions(Set<String> reducedFrameFunctions) {
+        this.reducedFrameFunctions = reducedFrameFunctions;
+    }
+
+    /**
+     * Sets the static addresses used for the modules written from now on.
+     * Without them statics are written as symbols for the assembler.
+     * @param staticAllocator Allocated statics of the program
+     */
+    public void setStaticAllocator(StaticAllocator staticAllocator) {
+        this.staticAllocator = staticAllocator;
+    }
+
+    /**
+     * Adds the shared routines used by another code writer, e.g. one that
+     * translated a file on another thread, so they are written on close
+     * @param other Code writer whose used routines are added
+     */
+    public void addUsedRoutines(CodeWriter other) {
+        usedRoutines.addAll(other.usedRoutines);
     }
 
     /**
@@ -29,6 +122,302 @@ public class CodeWriter {
      */
     public void setFileName(String filename) {
         this.filename = filename.substring(0, filename.lastIndexOf("."));
+        labelPrefix = this.filename + "$"; // keep generated labels unique per file
+    }
+
+    /**
+     * Writes the assembly code for every function of a parsed VM file
+     * @param module Intermediate representation of the file
+     */
+    public void writeModule(VMModule module) {
+        setFileName(module.getFileName());
+
+        if (staticAllocator != null)
+            staticAddresses = staticAllocator.getAddresses(module.getFileName());
+
+        for (VMFunction function : module.getFunctions())
+            writeFunction(function);
+
+        writeSpillTopOfStack();
+    }
+
+    /**
+     * Writes the assembly code for a function and its commands
+     * @param function Intermediate representation of the function
+     */
+    public void writeFunction(VMFunction function) {
+        if (function.getName() != null)    // commands outside of a function have no header
+            writeFunction(function.getName(), function.getNumLocals());
+
+        for (int i = 0; i < function.size(); i++) {
+            Opcode opcode = function.getOpcode(i);
+
+            switch (opcode) {
+                case PUSH: case POP:
+                    if (opcode == Opcode.PUSH && options.isBatchedPushes() && !options.isTopOfStackCaching()) {
+                        int count = countBatchablePushes(function, i);
+
+                        if (count >= 2) {   // store the run at SP offsets
+                            writePushRun(function, i, count);
+                            i += count - 1;
+                            break;
+                        }
+                    }
+
+                    if (opcode == Opcode.PUSH && i + 1 < function.size()
+                            && function.getOpcode(i + 1) == Opcode.POP) {
+                        writeMove(function.getSegment(i).getName(), function.getIndex(i),
+                                function.getSegment(i + 1).getName(), function.getIndex(i + 1));
+                        i++;
+                        break;
+                    }
+
+                    if (opcode == Opcode.PUSH && function.getSegment(i) == Segment.CONSTANT
+                            && i + 1 < function.size()) {
+                        Opcode next = function.getOpcode(i + 1);
+
+                        if (next == Opcode.NOT || next == Opcode.NEG) { // e.g. push constant 0 / not is true
+                            int value = function.getIndex(i);
+                            writePushPop(Command.C_PUSH, "constant", next == Opcode.NOT ? ~value : -value);
+                            i++;
+                            break;
+                        }
+                    }
+
+                    writePushPop(opcode.getCommandType(), function.getSegment(i).getName(),
+                            function.getIndex(i));
+                    break;
+                case LABEL:
+                    writeLabel(function.getLabel(i));
+                    break;
+                case GOTO:
+                    writeGoto(function.getLabel(i));
+                    break;
+                case IF_GOTO:
+                    writeIf(function.getLabel(i));
+                    break;
+                case CALL:
+                    // nothing left to do after the call, and the callee can return through our frame
+                    if (options.isTailCalls() && function.getName() != null
+                            && isFollowedBy(function, i, Opcode.RETURN)
+                            && getFrameSize(function.getName()) == getFrameSize(function.getLabel(i))) {
+                        writeTailCall(function.getLabel(i), function.getIndex(i));
+                        i++;
+                        break;
+                    }
+
+                    writeCall(function.getLabel(i), function.getIndex(i));
+                    break;
+                case RETURN:
+                    writeReturn();
+                    break;
+                case DROP:
+                    writeDrop(function.getIndex(i));
+                    break;
+                case EQ: case GT: case LT:
+                    if (isFollowedBy(function, i, Opcode.IF_GOTO)) {   // branch on the comparison
+                        writeCompareAndIf(getJumpMnemonic(opcode, false), function.getLabel(i + 1));
+                        i++;
+                        break;
+                    }
+
+                    if (isFollowedBy(function, i, Opcode.NOT) && isFollowedBy(function, i + 1, Opcode.IF_GOTO)) {
+                        writeCompareAndIf(getJumpMnemonic(opcode, true), function.getLabel(i + 2));
+                        i += 2;
+                        break;
+                    }
+
+                    writeArithmetic(opcode.getName());
+                    break;
+                case NOT:
+                    if (isFollowedBy(function, i, Opcode.IF_GOTO)) {
+                        writeNotAndIf(function.getLabel(i + 1));
+                        i++;
+                        break;
+                    }
+
+                    writeArithmetic(opcode.getName());
+                    break;
+                default:
+                    writeArithmetic(opcode.getName());
+            }
+        }
+    }
+
+    /**
+     * Counts the consecutive pushes starting at a command that are not fused
+     * with the command after them
+     * @param function Function containing the commands
+     * @param start Index of the first push
+     * @return Number of pushes in the run
+     */
+    private static int countBatchablePushes(VMFunction function, int start) {
+        int end = start;
+
+        // stack slots are addressed from SP, which a batch only adjusts at its end
+        while (end < function.size() && function.getOpcode(end) == Opcode.PUSH
+                && function.getSegment(end) != Segment.STACK)
+            end++;
+
+        if (end > start && end < function.size()) {
+            Opcode next = function.getOpcode(end);
+            boolean constant = function.getSegment(end - 1) == Segment.CONSTANT;
+
+            // the last push becomes a move or a negated constant instead
+            if (next == Opcode.POP || (constant && (next == Opcode.NOT || next == Opcode.NEG)))
+                end--;
+        }
+
+        return end - start;
+    }
+
+    /**
+     * Writes a run of pushes. The run is split into batches that store their
+     * values at SP, SP+1, ... and adjust SP once, choosing the batch sizes
+     * with the fewest instructions. A batch of one is an ordinary push.
+     * @param function Function containing the pushes
+     * @param start Index of the first push
+     * @param count Number of pushes in the run
+     */
+    private void writePushRun(VMFunction function, int start, int count) {
+        int[] cost = new int[count + 1];    // fewest instructions for the first i pushes
+        int[] batchSize = new int[count + 1];
+
+        for (int i = 1; i <= count; i++) {
+            cost[i] = Integer.MAX_VALUE;
+
+            for (int size = 1; size <= Math.min(i, MAX_PUSH_BATCH); size++) {
+                int total = cost[i - size] + getPushBatchCost(function, start + i - size, size);
+
+                if (total < cost[i]) {
+                    cost[i] = total;
+                    batchSize[i] = size;
+                }
+            }
+        }
+
+        int[] sizes = new int[count];
+        int numBatches = 0;
+
+        for (int i = count; i > 0; i -= batchSize[i])
+            sizes[numBatches++] = batchSize[i];
+
+        for (int batch = numBatches - 1, i = start; batch >= 0; i += sizes[batch--]) {
+            if (sizes[batch] == 1)
+                writePushPop(Command.C_PUSH, function.getSegment(i).getName(), function.getIndex(i));
+            else
+                writePushBatch(function, i, sizes[batch]);
+        }
+    }
+
+    /**
+     * Writes pushes at SP, SP+1, ... and adjusts SP once at the end. ALU
+     * constants are stored without D, stepping A from the previous slot.
+     * @param function Function containing the pushes
+     * @param start Index of the first push
+     * @param count Number of pushes in the batch
+     */
+    private void writePushBatch(VMFunction function, int start, int count) {
+        boolean previousSlotInA = false;
+
+        for (int offset = 0; offset < count; offset++) {
+            Segment segment = function.getSegment(start + offset);
+            int index = function.getIndex(start + offset);
+            boolean aluConstant = isAluConstant(function, start + offset);
+
+            if (aluConstant && previousSlotInA) {
+                write("A=A+1\n");
+            } else {
+                if (!aluConstant)
+                    writeLoadData(segment.getName(), index);
+
+                writeStepToSegmentAddress("SP", offset);   // A = SP + offset
+            }
+
+            if (aluConstant)
+                writeAluConstant("M", index);
+            else
+                write("M=D\n");
+
+            previousSlotInA = true;
+        }
+
+        if (count <= 3) {
+            write("@SP\n");
+
+            for (int i = 0; i < count; i++)
+                write("M=M+1\n");
+        } else {
+            writeAddress(count);
+            write("D=A\n" +
+                  "@SP\n" +
+                  "M=D+M\n");   // SP = SP + count
+        }
+    }
+
+    /**
+     * Returns the number of instructions writePushBatch writes to store its
+     * values and adjust SP, or the cost of an ordinary push for a batch of
+     * one. Loading values into D is left out since it costs the same either
+     * way.
+     * @param function Function containing the pushes
+     * @param start Index of the first push
+     * @param count Number of pushes in the batch
+     * @return Instruction count
+     */
+    private static int getPushBatchCost(VMFunction function, int start, int count) {
+        if (count == 1) // @SP / A=M / M=D / @SP / M=M+1 or @SP / M=M+1 / A=M-1 / M=c
+            return isAluConstant(function, start) ? 4 : 5;
+
+        int cost = count <= 3 ? 1 + count : 4;  // SP adjustment
+
+        for (int offset = 0; offset < count; offset++) {
+            if (offset > 0 && isAluConstant(function, start + offset))
+                cost += 2;  // A=A+1 / M=c
+            else
+                cost += offset == 0 ? 3 : offset + 2;   // @SP / A=M or A=M+1 / A=A+1... / M=D
+        }
+
+        return cost;
+    }
+
+    /**
+     * Checks if a command pushes a constant the ALU can compute
+     * @param function Function containing the command
+     * @param i Command index
+     * @return True for push constant 0, 1 and -1
+     */
+    private static boolean isAluConstant(VMFunction function, int i) {
+        return function.getSegment(i) == Segment.CONSTANT && isAluConstant(function.getIndex(i));
+    }
+
+    /**
+     * Checks if the command after a given command has the given opcode
+     * @param function Function containing the commands
+     * @param i Command index
+     * @param opcode Opcode of the next command
+     * @return True if command i + 1 exists and has the opcode
+     */
+    private static boolean isFollowedBy(VMFunction function, int i, Opcode opcode) {
+        return i + 1 < function.size() && function.getOpcode(i + 1) == opcode;
+    }
+
+    /**
+     * Returns the jump mnemonic that tests the difference of the operands
+     * of a comparison
+     * @param comparison EQ, GT or LT
+     * @param negated True to jump when the comparison is false
+     * @return Jump mnemonic in HACK assembly
+     */
+    private static String getJumpMnemonic(Opcode comparison, boolean negated) {
+        switch (comparison) {
+            case EQ:
+                return negated ? "JNE" : "JEQ";
+            case GT:
+                return negated ? "JLE" : "JGT";
+            default:
+                return negated ? "JGE" : "JLT";
+        }
     }
 
     /**
@@ -36,6 +425,11 @@ public class CodeWriter {
      * @param command The text of the arithmetic command
      */
     public void writeArithmetic(String command) {
+        if (topOfStackInD) {    // second operand is already in D
+            writeCachedArithmetic(command);
+            return;
+        }
+
         switch (command) {
             case "add":
                 writeHeaderForBinaryCommand();
@@ -53,17 +447,14 @@ public class CodeWriter {
                 break;
 
             case "eq":  // check if equal
-                writeHeaderForBinaryCommand();
                 writeComparisonCommand("JEQ");
                 break;
 
             case "gt":  // check if greater
-                writeHeaderForBinaryCommand();
                 writeComparisonCommand("JGT");
                 break;
 
             case "lt":  // check if less than
-                writeHeaderForBinaryCommand();
                 writeComparisonCommand("JLT");
                 break;
 
@@ -96,52 +487,37 @@ public class CodeWriter {
             throw new IllegalArgumentException("Cannot call writePushPop to" + 
                     " write command other than push or pop!");
 
-        // load appropriate data to push or pop into register A
-        switch (segment) {
-            case "constant":    // index as constant
-                write("@" + index + "\n");
-                break;
-
-            case "local":       // A = LCL + index
-                writeGetAddressAtRegisterWithOffset("LCL", index);
-                break;
-
-            case "argument":    // A = ARG + index
-                writeGetAddressAtRegisterWithOffset("ARG", index);
-                break;
-
-            case "this":        // A = THIS + index
-                writeGetAddressAtRegisterWithOffset("THIS", index);
-                break;
-
-            case "that":        // A = THAT + index
-                writeGetAddressAtRegisterWithOffset("THAT", index);    
-                break;
-
-            case "pointer":     // A = 3 + index
-                writeGetAddressOfRegisterWithOffset("THIS", index);
-                break;
+        if (pushOrPop == Command.C_POP && topOfStackInD) {
+            writeCachedPop(segment, index);
+            return;
+        }
 
-            case "temp":        // A = 5 + index
-                writeGetAddressOfRegisterWithOffset("R5", index);
-                break;
+        writeSpillTopOfStack();
 
-            case "static":      // A = filename.index
-                write("@" + filename + "." + index + "\n");
-                break;
+        if (pushOrPop == Command.C_PUSH && segment.equals("constant")
+                && !options.isTopOfStackCaching() && isAluConstant(index)) {
+            write(PUSH_SLOT);   // @SP / M=M+1 / A=M-1
+            writeAluConstant("M", index);
+            return;
+        }
 
-            default:
-                throw new IllegalArgumentException("Unknown segment for push or pop command!");
+        if (pushOrPop == Command.C_POP
+                && POP_DATA_COST + getStoreDataCost(segment, index) < INDIRECT_POP_COST) {
+            writePopStackToData();  // pop first, then find the address in A alone
+            writeStoreData(segment, index);
+            return;
         }
 
         if (pushOrPop == Command.C_PUSH) {
-            if (segment.equals("constant"))
-                write("D=A\n"); // D has the constant
+            writeLoadData(segment, index);
+
+            if (options.isTopOfStackCaching())
+                topOfStackInD = true;   // leave the value in D until it is needed
             else
-                write ("D=M\n"); // D has the value at address A
-            
-            writePushDataToStack();
+                writePushDataToStack();
         } else {    // pop command
+            // stack slots are relative to SP after the pop, which has not happened yet
+            writeGetSegmentAddress(segment, segment.equals("stack") ? index + 1 : index);
             write("D=A\n" +         // save address in temp variable
                   "@R13\n" + 
                   "M=D\n");
@@ -153,14 +529,42 @@ public class CodeWriter {
     }
 
     /**
-     * Writes initialization code to call Sys.init
+     * Writes a push immediately followed by a pop as a move through D that
+     * leaves the stack pointer untouched
+     * @param fromSegment Segment of the push
+     * @param fromIndex Index in the segment of the push
+     * @param toSegment Segment of the pop
+     * @param toIndex Index in the segment of the pop
+     */
+    public void writeMove(String fromSegment, int fromIndex, String toSegment, int toIndex) {
+        writeSpillTopOfStack();
+        writeLoadData(fromSegment, fromIndex);
+        topOfStackInD = true;   // the pop takes the value from D
+        writeCachedPop(toSegment, toIndex);
+    }
+
+    /**
+     * Writes initialization code to call Sys.init, followed by the shared
+     * runtime routines if they are enabled. Routines that only some
+     * programs need are written on close.
      */
     public void writeInit() {
+        writesRoutines = true;
+
         write("@256\n" +        // initialize stack pointer
               "D=A\n" +
               "@SP\n" +
               "M=D\n");
         writeCall("Sys.init", 0);
+
+        if (options.isSharedRuntime())
+            writeSharedRuntime(FULL_FRAME_SIZE);
+
+        if (options.isSharedComparisons()) {
+            writeSharedComparison("JEQ");
+            writeSharedComparison("JGT");
+            writeSharedComparison("JLT");
+        }
     }
 
     /**
@@ -168,8 +572,8 @@ public class CodeWriter {
      * @param label Label name
      */
     public void writeLabel(String label) {
-        String localLabel = currentFunctionName + "." + label;
-        write("(" + localLabel + ")\n");
+        writeSpillTopOfStack();
+        writeLabelDeclaration(currentFunctionName, label);
     }
 
     /**
@@ -177,9 +581,9 @@ public class CodeWriter {
      * @param label Label name
      */
     public void writeGoto(String label) {
-        String localLabel = currentFunctionName + "." + label;
-        write("@" + localLabel + "\n" +
-              "0;JMP\n");
+        writeSpillTopOfStack();
+        writeAddress(currentFunctionName, label);
+        write("0;JMP\n");
     }
 
     /**
@@ -188,14 +592,79 @@ public class CodeWriter {
      * @param label
      */
     public void writeIf(String label) {
-        String localLabel = currentFunctionName + "." + label;
-        writePopStackToData();
-        write("@IF_FALSE_" + numIfGotoLabels + "\n" + 
-              "D;JEQ\n" +   // check if top of stack is false
-              "@" + localLabel + "\n" +
-              "0;JMP\n" +
-              "(IF_FALSE_" + numIfGotoLabels + ")\n");
-        numIfGotoLabels++;
+        if (topOfStackInD)
+            topOfStackInD = false;  // condition is already in D
+        else
+            writePopStackToData();
+
+        writeAddress(currentFunctionName, label);
+        write("D;JNE\n");   // jump if top of stack is not false
+    }
+
+    /**
+     * Writes code to remove values from the stack without reading them
+     * @param count Number of values to remove
+     */
+    public void writeDrop(int count) {
+        if (topOfStackInD) {    // the cached value is the first to go
+            topOfStackInD = false;
+            count--;
+        }
+
+        if (count <= 3) {
+            if (count > 0)
+                write("@SP\n");
+
+            for (int i = 0; i < count; i++)
+                write("M=M-1\n");
+        } else {
+            writeAddress(count);
+            write("D=A\n" +
+                  "@SP\n" +
+                  "M=M-D\n");   // SP = SP - count
+        }
+    }
+
+    /**
+     * Writes a comparison followed by if-goto as one conditional jump on the
+     * difference of the operands, without pushing the boolean result
+     * @param jumpMnemonic Jump mnemonic that is true when the branch is taken
+     * @param label Label name
+     */
+    public void writeCompareAndIf(String jumpMnemonic, String label) {
+        if (topOfStackInD)
+            topOfStackInD = false;  // second operand is already in D
+        else
+            write("@SP\n" +
+                  "AM=M-1\n" +
+                  "D=M\n");         // D = second operand
+
+        write("@SP\n" +
+              "AM=M-1\n" +
+              "D=M-D\n");           // D = first operand - second operand
+        writeAddress(currentFunctionName, label);
+        write("D;");
+        write(jumpMnemonic);
+        write("\n");
+    }
+
+    /**
+     * Writes not followed by if-goto as one conditional jump that is taken
+     * unless the top of stack is -1
+     * @param label Label name
+     */
+    public void writeNotAndIf(String label) {
+        if (topOfStackInD) {
+            topOfStackInD = false;
+            write("D=!D\n");
+        } else {
+            write("@SP\n" +
+                  "AM=M-1\n" +
+                  "D=!M\n");
+        }
+
+        writeAddress(currentFunctionName, label);
+        write("D;JNE\n");
     }
 
     /**
@@ -204,64 +673,92 @@ public class CodeWriter {
      * @param numArgs Number of arguments
      */
     public void writeCall(String functionName, int numArgs) {
-        write("@RETURN_" + numReturnLabels + "\n" +
-              "D=A\n");
+        int frameSize = getFrameSize(functionName);
+
+        writeSpillTopOfStack();
+
+        if (options.isSharedRuntime()) {
+            writeAddress(numArgs);
+            write("D=A\n" +
+                  "@R13\n" +
+                  "M=D\n");         // R13 = n
+            writeAddress(functionName);
+            write("D=A\n" +
+                  "@R14\n" +
+                  "M=D\n");         // R14 = function address
+            writeGeneratedAddress("RETURN_", numReturnLabels);
+            String routine = getRoutineName("$$CALL", frameSize);
+
+            usedRoutines.add(routine);
+            write("D=A\n");         // D = return address
+            writeAddress(routine);
+            write("0;JMP\n");       // let the runtime build the frame
+            writeGeneratedLabel("RETURN_", numReturnLabels);
+            numReturnLabels++;
+            return;
+        }
+
+        writeGeneratedAddress("RETURN_", numReturnLabels);
+        write("D=A\n");
         writePushDataToStack(); // push return address
-        write("@LCL\n" +
-              "D=M\n");
-        writePushDataToStack(); // push local
-        write("@ARG\n" +
-              "D=M\n");
-        writePushDataToStack(); // push argument
-        write("@THIS\n" +
-              "D=M\n");
-        writePushDataToStack(); // push this
-        write("@THAT\n" +
-              "D=M\n");
-        writePushDataToStack(); // push that
+        writePushFrame(frameSize);
         write("@SP\n" +
               "D=M\n" +         // D = SP
               "@LCL\n" +
-              "M=D\n" +         // LCL = SP
-              "@" + numArgs + "\n" +
-              "D=D-A\n" +       // D = SP - n
-              "@5\n" +
-              "D=D-A\n" +       // D = SP - n - 5
+              "M=D\n");         // LCL = SP
+        writeAddress(numArgs);
+        write("D=D-A\n");       // D = SP - n
+        writeAddress(frameSize);
+        write("D=D-A\n" +       // D = SP - n - frame size
               "@ARG\n" + 
-              "M=D\n" +         // ARG + SP - n - 5
-              "@" + functionName + "\n" +
-              "0;JMP\n" +       // jump to function
-              "(RETURN_" + numReturnLabels + ")\n");
+              "M=D\n");         // ARG = SP - n - frame size
+        writeAddress(functionName);
+        write("0;JMP\n");       // jump to function
+        writeGeneratedLabel("RETURN_", numReturnLabels);
         numReturnLabels++;
     }
 
     /**
-     * Writes the return command in assembly code
+     * Writes a call immediately followed by return as a jump that reuses the
+     * frame of the current function
+     * @param functionName Name of the called function
+     * @param numArgs Number of arguments
      */
-    public void writeReturn() {
-        write("@LCL\n" +
-              "D=M\n" +
+    public void writeTailCall(String functionName, int numArgs) {
+        writeSpillTopOfStack();
+        writeAddress(numArgs);
+        write("D=A\n" +
               "@R13\n" +
-              "M=D\n" +     // FRAME = LCL
-              "@5\n" +
-              "A=D-A\n" +   
-              "D=M\n" +     // D = *(FRAME - 5)
+              "M=D\n");         // R13 = n
+        writeAddress(functionName);
+        write("D=A\n" +
               "@R14\n" +
-              "M=D\n");     // RET = *(FRAME - 5)
-        writePopStackToData();
-        write("@ARG\n" +
-              "A=M\n" +
-              "M=D\n" +     // *ARG = pop()
-              "D=A+1\n" +
-              "@SP\n" +
-              "M=D\n");     // SP = ARG + 1
-        writeRestoreRegisterWithOffset("THAT", 1);
-        writeRestoreRegisterWithOffset("THIS", 2);
-        writeRestoreRegisterWithOffset("ARG", 3);
-        writeRestoreRegisterWithOffset("LCL", 4);
-        write("@R14\n" +
-              "A=M\n" +
-              "0;JMP\n");   // goto RET
+              "M=D\n");         // R14 = function address
+        String routine = getRoutineName("$$TAILCALL", getFrameSize(functionName));
+
+        usedRoutines.add(routine);
+        writeAddress(routine);
+        write("0;JMP\n");       // let the runtime move the arguments
+    }
+
+    /**
+     * Writes the return command in assembly code
+     */
+    public void writeReturn() {
+        writeSpillTopOfStack();
+
+        int frameSize = getFrameSize(currentFunctionName);
+
+        if (options.isSharedRuntime()) {
+            String routine = getRoutineName("$$RETURN", frameSize);
+
+            usedRoutines.add(routine);
+            writeAddress(routine);
+            write("0;JMP\n");   // let the runtime tear down the frame
+            return;
+        }
+
+        writeReturnSequence(frameSize);
     }
 
     /**
@@ -270,129 +767,734 @@ public class CodeWriter {
      * @param numLocals Number of local variables
      */
     public void writeFunction(String functionName, int numLocals) {
-        write("(" + functionName + ")\n" +
-              "@" + numLocals + "\n" +
-              "D=A\n" +         // D = k + 1
-              "(START_LOOP_" + numFunctLabels + ")\n" +
-              "@END_LOOP_" + numFunctLabels + "\n" +
-              "D;JLE\n" +       // check if iterated k times
-              "D=D-1\n" +       // k--
-              "@R13\n" +
-              "M=D\n" +         // save k in temp variable
-              "@0\n" +
-              "D=A\n");
-        writePushDataToStack(); // push 0 to stack
-        write("@R13\n" +        // restore k
-              "D=M\n" +
-              "@START_LOOP_" + numFunctLabels + "\n" +
-              "0;JMP\n" +       // loop again
-              "(END_LOOP_" + numFunctLabels + ")\n");
-        numFunctLabels++;
+        writeSpillTopOfStack();
+        writeLabelDeclaration(functionName);
         currentFunctionName = functionName;
+
+        if (numLocals == 0) // nothing to initialize
+            return;
+
+        if (numLocals == 1) {
+            write(PUSH_SLOT);   // @SP / M=M+1 / A=M-1
+            write("M=0\n");
+            return;
+        }
+
+        if (numLocals <= options.getMaxUnrolledLocals()) {
+            write("@SP\n" +
+                  "A=M\n" +
+                  "M=0\n");     // first local = 0
+
+            for (int i = 1; i < numLocals; i++)
+                write("A=A+1\n" +
+                      "M=0\n"); // next local = 0
+
+            write("D=A+1\n" +
+                  "@SP\n" +
+                  "M=D\n");     // SP = address after the last local
+            return;
+        }
+
+        writeAddress(numLocals);
+        write("D=A\n");         // D = k
+        writeGeneratedLabel("LOCALS_", numFunctLabels);
+        write(PUSH_SLOT);       // @SP / M=M+1 / A=M-1
+        write("M=0\n" +         // push 0 to stack
+              "D=D-1\n");       // k--
+        writeGeneratedAddress("LOCALS_", numFunctLabels);
+        write("D;JGT\n");       // loop until k is 0
+        numFunctLabels++;
+    }
+
+    /**
+     * Appends assembly code that was generated by another code writer into
+     * memory. The code bypasses the peephole optimizer since it was
+     * optimized when it was generated.
+     * @param code Generated assembly code
+     */
+    public void writeCode(AsciiWriter code) {
+        writeSpillTopOfStack();
+
+        try {
+            writer.flush();
+
+            if (binaryWriter != null)
+                code.writeTo(binaryWriter);
+            else
+                output.write(code);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write to output file!");
+        }
     }
 
     /**
-     * Closes the buffered writer
+     * Writes the shared routines that were used, if this writer wrote the
+     * init code, and closes the buffered writer
      * @throws IOException
      */
     public void close() throws IOException {
+        writeSpillTopOfStack();
+
+        if (writesRoutines)
+            writeUsedRoutines();
+
         writer.close();
     }
 
     /**
-     * Loads first argument in D and second argument's address in A
+     * Opens an ASCII writer for the output file
+     * @param outputFile File to be written
+     * @return ASCII writer that flushes to the file
      */
-    private void writeHeaderForBinaryCommand() {
-        write("@SP\n" + 
-              "M=M-1\n" + 
-              "A=M\n" + 
-              "D=M\n" + 
-              "A=A-1\n");
+    private static AsciiWriter openOutputFile(File outputFile) {
+        if (outputFile == null) {   // check if output file is null
+            throw new IllegalArgumentException("Output file should not be null!");
+        }
+
+        try {
+            return new AsciiWriter(new FileOutputStream(outputFile).getChannel());
+        } catch (FileNotFoundException e) {   // file error
+            throw new IllegalStateException("File could not be created, is directory, or cannot be opened!");
+        }
     }
 
     /**
-     * Loads address for argument in register A
+     * Writes the shared routines that are only needed when a call site
+     * jumps to them
      */
-    private void writeHeaderForUnaryCommand() {
+    private void writeUsedRoutines() {
+        // the full frame routines are written with the init code, which calls Sys.init through them
+        if (usedRoutines.contains(getRoutineName("$$CALL", REDUCED_FRAME_SIZE))
+                || usedRoutines.contains(getRoutineName("$$RETURN", REDUCED_FRAME_SIZE)))
+            writeSharedRuntime(REDUCED_FRAME_SIZE);
+
+        for (int frameSize : new int[] { FULL_FRAME_SIZE, REDUCED_FRAME_SIZE }) {
+            if (usedRoutines.contains(getRoutineName("$$TAILCALL", frameSize)))
+                writeTailCallRoutine(frameSize);
+        }
+    }
+
+    /**
+     * Writes the shared $$CALL and $$RETURN routines for one frame size.
+     * $$CALL expects the return address in D, the number of arguments in R13
+     * and the function address in R14.
+     * @param frameSize Number of words in the saved frame
+     */
+    private void writeSharedRuntime(int frameSize) {
+        writeLabelDeclaration(getRoutineName("$$CALL", frameSize));
+        writePushDataToStack(); // push return address
+        writePushFrame(frameSize);
+        write("@SP\n" +
+              "D=M\n" +         // D = SP
+              "@LCL\n" +
+              "M=D\n" +         // LCL = SP
+              "@R13\n" +
+              "D=D-M\n");       // D = SP - n
+        writeAddress(frameSize);
+        write("D=D-A\n" +       // D = SP - n - frame size
+              "@ARG\n" +
+              "M=D\n" +         // ARG = SP - n - frame size
+              "@R14\n" +
+              "A=M\n" +
+              "0;JMP\n");       // jump to function
+
+        writeLabelDeclaration(getRoutineName("$$RETURN", frameSize));
+        writeReturnSequence(frameSize);
+    }
+
+    /**
+     * Returns the number of words a call to a function saves on the stack
+     * @param functionName Name of the called function
+     * @return Size of the saved frame
+     */
+    private int getFrameSize(String functionName) {
+        return reducedFrameFunctions.contains(functionName) ? REDUCED_FRAME_SIZE : FULL_FRAME_SIZE;
+    }
+
+    /**
+     * Returns the name of the shared routine for a frame size
+     * @param name Name of the routine for full frames
+     * @param frameSize Number of words in the saved frame
+     * @return Name of the routine
+     */
+    private static String getRoutineName(String name, int frameSize) {
+        return frameSize == FULL_FRAME_SIZE ? name : name + "_REDUCED";
+    }
+
+    /**
+     * Writes the shared $$TAILCALL routine for one frame size. It expects
+     * the number of new arguments in R13 and the function address in R14,
+     * moves the arguments to ARG and keeps the saved frame of the current
+     * function, so the callee returns straight to the current function's
+     * caller.
+     * @param frameSize Number of words in the saved frame
+     */
+    private void writeTailCallRoutine(int frameSize) {
+        String name = getRoutineName("$$TAILCALL", frameSize);
+
+        writeLabelDeclaration(name);
+        write("@LCL\n" +
+              "D=M\n" +
+              "@ARG\n" +
+              "D=D-M\n");
+        writeAddress(frameSize);
+        write("D=D-A\n" +       // D = current number of arguments
+              "@R13\n" +
+              "D=D-M\n");
+        writeAddress(name + "_COPY");
+        write("D;JEQ\n");       // saved frame is already in place
+
+        // the frame moves, so it is copied above the arguments and moved with them
+        for (int offset = frameSize; offset > 0; offset--) {
+            write("@LCL\n" +
+                  "D=M\n");
+            writeAddress(offset);
+            write("A=D-A\n" +
+                  "D=M\n");     // D = *(LCL - offset)
+            write(SPILL_DATA);  // @SP / M=M+1 / A=M-1 / M=D
+        }
+
+        write("@ARG\n" +
+              "D=M\n" +
+              "@R13\n" +
+              "D=D+M\n");
+        writeAddress(frameSize);
+        write("D=D+A\n" +
+              "@LCL\n" +
+              "M=D\n");         // LCL = ARG + n + frame size
+        writeAddress(frameSize);
+        write("D=A\n" +
+              "@R13\n" +
+              "M=D+M\n");       // R13 = n + frame size words to move
+        writeLabelDeclaration(name + "_COPY");
+        write("@R13\n" +
+              "D=M\n" +
+              "@SP\n" +
+              "D=M-D\n" +
+              "@R15\n" +
+              "M=D\n" +         // R15 = first word to move
+              "@ARG\n" +
+              "D=M\n" +
+              "@SP\n" +
+              "M=D\n" +         // SP = ARG, where the words go
+              "@R13\n" +
+              "D=M\n");
+        writeAddress(name + "_JUMP");
+        write("D;JEQ\n");       // no arguments
+        writeLabelDeclaration(name + "_LOOP");
+        write("@R15\n" +
+              "AM=M+1\n" +
+              "A=A-1\n" +
+              "D=M\n" +         // D = *R15++
+              "@SP\n" +
+              "AM=M+1\n" +
+              "A=A-1\n" +
+              "M=D\n" +         // *SP++ = D, never above R15
+              "@R13\n" +
+              "MD=M-1\n");
+        writeAddress(name + "_LOOP");
+        write("D;JGT\n");
+        writeLabelDeclaration(name + "_JUMP");
+        write("@LCL\n" +
+              "D=M\n" +
+              "@SP\n" +
+              "M=D\n" +         // SP = LCL
+              "@R14\n" +
+              "A=M\n" +
+              "0;JMP\n");       // jump to function
+    }
+
+    /**
+     * Writes code to push the caller's LCL and ARG, and THIS and THAT for a
+     * full frame, to the stack
+     * @param frameSize Number of words in the saved frame
+     */
+    private void writePushFrame(int frameSize) {
+        write("@LCL\n" +
+              "D=M\n");
+        writePushDataToStack(); // push local
+        write("@ARG\n" +
+              "D=M\n");
+        writePushDataToStack(); // push argument
+
+        if (frameSize == REDUCED_FRAME_SIZE)    // callee never changes THIS and THAT
+            return;
+
+        write("@THIS\n" +
+              "D=M\n");
+        writePushDataToStack(); // push this
+        write("@THAT\n" +
+              "D=M\n");
+        writePushDataToStack(); // push that
+    }
+
+    /**
+     * Writes code to return from the current frame to the caller
+     * @param frameSize Number of words in the saved frame
+     */
+    private void writeReturnSequence(int frameSize) {
+        write("@LCL\n" +
+              "D=M\n" +
+              "@R13\n" +
+              "M=D\n");     // FRAME = LCL
+        writeAddress(frameSize);
+        write("A=D-A\n" +   
+              "D=M\n" +     // D = *(FRAME - frame size)
+              "@R14\n" +
+              "M=D\n");     // RET = *(FRAME - frame size)
+        writePopStackToData();
+        write("@ARG\n" +
+              "A=M\n" +
+              "M=D\n" +     // *ARG = pop()
+              "D=A+1\n" +
+              "@SP\n" +
+              "M=D\n");     // SP = ARG + 1
+        if (frameSize == FULL_FRAME_SIZE) {
+            writeRestoreRegisterWithOffset("THAT", 1);
+            writeRestoreRegisterWithOffset("THIS", 2);
+        }
+
+        writeRestoreRegisterWithOffset("ARG", frameSize - 2);
+        writeRestoreRegisterWithOffset("LCL", frameSize - 1);
+        write("@R14\n" +
+              "A=M\n" +
+              "0;JMP\n");   // goto RET
+    }
+
+    /**
+     * Loads first argument in D and second argument's address in A
+     */
+    private void writeHeaderForBinaryCommand() {
+        write(BINARY_HEADER);   // @SP / M=M-1 / A=M / D=M / A=A-1
+    }
+
+    /**
+     * Loads address for argument in register A
+     */
+    private void writeHeaderForUnaryCommand() {
         writeGetAddressAtRegister("SP");
         write("A=A-1\n");
     }
 
     /**
-     * Writes the footer for the eq, lt, and gt commands in assembly
-     * code
+     * Loads a constant into D. 0, 1 and -1 come from the ALU, negative
+     * constants (e.g. from constant folding) are loaded as the complement of
+     * a 15-bit A-instruction.
+     * @param value Constant, wrapped to 16 bits
+     */
+    private void writeLoadConstant(int value) {
+        value = (short) value;
+
+        if (isAluConstant(value)) {
+            writeAluConstant("D", value);
+        } else if (value > 0) {
+            writeAddress(value);
+            write("D=A\n");
+        } else {
+            writeAddress(~value);
+            write("D=!A\n");
+        }
+    }
+
+    /**
+     * Checks if the ALU can compute a constant without an A-instruction
+     * @param value Constant, wrapped to 16 bits
+     * @return True for 0, 1 and -1
+     */
+    private static boolean isAluConstant(int value) {
+        value = (short) value;
+        return value == 0 || value == 1 || value == -1;
+    }
+
+    /**
+     * Writes an ALU constant to a register
+     * @param destination Destination register, e.g. "D" or "M"
+     * @param value 0, 1 or -1, wrapped to 16 bits
+     */
+    private void writeAluConstant(String destination, int value) {
+        write(destination);
+
+        switch ((short) value) {
+            case 0:
+                write("=0\n");
+                break;
+            case 1:
+                write("=1\n");
+                break;
+            default:
+                write("=-1\n");
+        }
+    }
+
+    /**
+     * Writes an arithmetic command whose top operand is cached in D, leaving
+     * the result in D
+     * @param command The text of the arithmetic command
+     */
+    private void writeCachedArithmetic(String command) {
+        switch (command) {
+            case "neg":
+                write("D=-D\n");
+                return;
+
+            case "not":
+                write("D=!D\n");
+                return;
+
+            case "eq": case "gt": case "lt":
+                if (options.isSharedComparisons()) {    // shared routines work on RAM
+                    writeSpillTopOfStack();
+                    writeArithmetic(command);
+                    return;
+                }
+        }
+
+        write("@SP\n" +
+              "AM=M-1\n");      // A = address of the first operand
+
+        switch (command) {
+            case "add":
+                write("D=D+M\n");
+                break;
+
+            case "sub":
+                write("D=M-D\n");
+                break;
+
+            case "and":
+                write("D=D&M\n");
+                break;
+
+            case "or":
+                write("D=D|M\n");
+                break;
+
+            case "eq":
+                writeCachedComparison("JEQ");
+                break;
+
+            case "gt":
+                writeCachedComparison("JGT");
+                break;
+
+            case "lt":
+                writeCachedComparison("JLT");
+                break;
+        }
+    }
+
+    /**
+     * Writes a comparison of the first operand at A with the second operand
+     * in D, leaving true or false in D
+     * @param jumpMnemonic Jump mnemonic in HACK assembly
+     */
+    private void writeCachedComparison(String jumpMnemonic) {
+        write("D=M-D\n");                  // subtract
+        writeGeneratedAddress("TRUE_", numLabels);
+        write("D;");
+        write(jumpMnemonic);
+        write("\n" +                        // check if we should jump
+              "D=0\n");                     // false
+        writeGeneratedAddress("END_", numLabels);
+        write("0;JMP\n");                  // jump to end
+        writeGeneratedLabel("TRUE_", numLabels);
+        write("D=-1\n");                    // true
+        writeGeneratedLabel("END_", numLabels);
+        numLabels++;
+    }
+
+    /**
+     * Writes a pop of the top of stack cached in D. The value is stored
+     * straight from D when its address is cheap to compute in A, and through
+     * R13 and R14 otherwise.
+     * @param segment Segment of memory
+     * @param index Index in segment
+     */
+    private void writeCachedPop(String segment, int index) {
+        if (getStoreDataCost(segment, index) < INDIRECT_POP_COST) {
+            writeStoreData(segment, index);
+        } else {
+            write("@R13\n" +        // save value in temp variable
+                  "M=D\n");
+            writeGetSegmentAddress(segment, index);
+            write("D=A\n" +         // save address in temp variable
+                  "@R14\n" +
+                  "M=D\n" +
+                  "@R13\n" +
+                  "D=M\n" +
+                  "@R14\n" +
+                  "A=M\n" +
+                  "M=D\n");
+        }
+
+        topOfStackInD = false;
+    }
+
+    /**
+     * Writes code to store D in a segment without touching D. Segment
+     * pointers are followed with A=M for index 0 and A=M+1 then A=A+1 steps
+     * for higher indices.
+     * @param segment Segment of memory
+     * @param index Index in segment
+     */
+    private void writeStoreData(String segment, int index) {
+        switch (segment) {
+            case "local": case "argument": case "this": case "that":
+                writeStepToSegmentAddress(getSegmentRegister(segment), index);
+                break;
+
+            case "stack":
+                writeStepToStackAddress(index);
+                break;
+
+            default:    // address is known
+                writeGetSegmentAddress(segment, index);
+        }
+
+        write("M=D\n");
+    }
+
+    /**
+     * Writes code to load a push value into D
+     * @param segment Segment of memory
+     * @param index Index in segment
+     */
+    private void writeLoadData(String segment, int index) {
+        if (segment.equals("constant")) {
+            writeLoadConstant(index);
+            return;
+        }
+
+        writeGetSegmentAddress(segment, index);
+        write("D=M\n");
+    }
+
+    /**
+     * Writes code to load the address of a segment entry into A, stepping
+     * from the segment pointer when that is shorter than adding the index
+     * @param segment Segment of memory
+     * @param index Index in segment
+     */
+    private void writeGetSegmentAddress(String segment, int index) {
+        switch (segment) {
+            case "constant":    // index as constant
+                writeAddress(index);
+                break;
+
+            case "static":      // A = filename.index, or its allocated address
+                if (staticAddresses != null)
+                    writeAddress(staticAddresses[index]);
+                else
+                    writeAddress(filename, index);
+                break;
+
+            case "pointer":     // A = 3 + index
+                writeAddress(3 + index);
+                break;
+
+            case "temp":        // A = 5 + index
+                writeAddress(5 + index);
+                break;
+
+            case "stack":       // A = SP - 1 - index
+                if (index <= MAX_POINTER_STEPS) {
+                    writeStepToStackAddress(index);
+                } else {
+                    write("@SP\n" +
+                          "D=M\n");
+                    writeAddress(index + 1);
+                    write("A=D-A\n");
+                }
+                break;
+
+            default:            // A = LCL, ARG, THIS or THAT + index
+                String registerName = getSegmentRegister(segment);
+
+                if (index <= MAX_POINTER_STEPS)
+                    writeStepToSegmentAddress(registerName, index);
+                else
+                    writeGetAddressAtRegisterWithOffset(registerName, index);
+        }
+    }
+
+    /**
+     * Writes code to load the address of a segment entry into A without
+     * touching D. Uses A=M for index 0, A=M+1 for index 1 and one more A=A+1
+     * for each higher index.
+     * @param registerName Register holding the segment base address
+     * @param index Index in segment
+     */
+    private void writeStepToSegmentAddress(String registerName, int index) {
+        writeAddress(registerName);
+
+        if (index == 0) {
+            write("A=M\n");
+            return;
+        }
+
+        write("A=M+1\n");
+
+        for (int i = 1; i < index; i++)
+            write("A=A+1\n");
+    }
+
+    /**
+     * Writes code to load the address of a stack slot into A without
+     * touching D
+     * @param index Slot index, 0 for the slot below SP
+     */
+    private void writeStepToStackAddress(int index) {
+        write("@SP\n" +
+              "A=M-1\n");
+
+        for (int i = 0; i < index; i++)
+            write("A=A-1\n");
+    }
+
+    /**
+     * Returns the number of instructions writeStoreData writes
+     * @param segment Segment of memory
+     * @param index Index in segment
+     * @return Instruction count
+     */
+    private static int getStoreDataCost(String segment, int index) {
+        switch (segment) {
+            case "constant": case "static": case "pointer": case "temp":
+                return 2;   // @address / M=D
+
+            case "stack":
+                return index + 3;   // @SP / A=M-1 / A=A-1... / M=D
+
+            default:
+                getSegmentRegister(segment);    // check that the segment is known
+                return index == 0 ? 3 : index + 2;
+        }
+    }
+
+    /**
+     * Returns the register holding the base address of a segment
+     * @param segment local, argument, this or that
+     * @return Register name
+     */
+    private static String getSegmentRegister(String segment) {
+        switch (segment) {
+            case "local":
+                return "LCL";
+            case "argument":
+                return "ARG";
+            case "this":
+                return "THIS";
+            case "that":
+                return "THAT";
+            default:
+                throw new IllegalArgumentException("Unknown segment for push or pop command!");
+        }
+    }
+
+    /**
+     * Writes the top of stack cached in D back to RAM, if it is cached
+     */
+    private void writeSpillTopOfStack() {
+        if (!topOfStackInD)
+            return;
+
+        write(SPILL_DATA);  // @SP / M=M+1 / A=M-1 / M=D
+        topOfStackInD = false;
+    }
+
+    /**
+     * Writes the eq, lt, and gt commands in assembly code, either inline or
+     * as a jump to the shared routine for the mnemonic
      * @param jumpMnemonic Jump mnemonic in HACK assembly
      */
     private void writeComparisonCommand(String jumpMnemonic) {
-        write("D=M-D\n" +                   // subtract
-              "@TRUE_" + numLabels + "\n" + 
-              "D;" + jumpMnemonic + "\n" +  // check if we should jump
+        if (options.isSharedComparisons()) {
+            writeGeneratedAddress("END_", numLabels);
+            write("D=A\n" +
+                  "@R13\n" +
+                  "M=D\n" +                     // R13 = return address
+                  "@$$");
+            write(jumpMnemonic);
+            write("\n" +
+                  "0;JMP\n");
+            writeGeneratedLabel("END_", numLabels);
+            numLabels++;
+            return;
+        }
+
+        writeHeaderForBinaryCommand();
+        write("D=M-D\n");                  // subtract
+        writeGeneratedAddress("TRUE_", numLabels);
+        write("D;");
+        write(jumpMnemonic);
+        write("\n" +                        // check if we should jump
               "@SP\n" +                     // false
               "A=M-1\n" + 
-              "M=0\n" +                     // push false to stack
-              "@END_" + numLabels + "\n" + 
-              "0;JMP\n" +                   // jump to end
-              "(TRUE_" + numLabels + ")\n" + // true
-              "@SP\n" +
+              "M=0\n");                     // push false to stack
+        writeGeneratedAddress("END_", numLabels);
+        write("0;JMP\n");                  // jump to end
+        writeGeneratedLabel("TRUE_", numLabels); // true
+        write("@SP\n" +
               "A=M-1\n" +
-              "M=-1\n" +                    // push true to stack
-              "(END_" + numLabels + ")\n");
+              "M=-1\n");                    // push true to stack
+        writeGeneratedLabel("END_", numLabels);
         numLabels++;
     }
 
     /**
-     * Gets the address in register registerName
-     * @param registerName
+     * Writes the shared routine for a comparison, which replaces the top two
+     * values of the stack with the result and returns to the address in R13
+     * @param jumpMnemonic Jump mnemonic in HACK assembly
      */
-    private void writeGetAddressAtRegister(String registerName) {
-        write("@" + registerName + "\n" +
-              "A=M\n");
+    private void writeSharedComparison(String jumpMnemonic) {
+        write("($$" + jumpMnemonic + ")\n");
+        writeHeaderForBinaryCommand();
+        write("D=M-D\n" +                   // subtract
+              "M=-1\n" +                    // assume true
+              "@$$" + jumpMnemonic + "_END\n" +
+              "D;" + jumpMnemonic + "\n" +  // check if we should jump
+              "@SP\n" +                     // false
+              "A=M-1\n" +
+              "M=0\n" +                     // push false to stack
+              "($$" + jumpMnemonic + "_END)\n" +
+              "@R13\n" +
+              "A=M\n" +
+              "0;JMP\n");                   // return to caller
     }
 
     /**
-     * Writes assembly code to get the address in the register plus an offset
+     * Gets the address in register registerName
      * @param registerName
-     * @param offset
      */
-    private void writeGetAddressAtRegisterWithOffset(String registerName, int offset) {
-        write("@" + registerName + "\n" +
-              "D=M\n" +
-              "@" + offset + "\n" +
-              "A=D+A\n");
+    private void writeGetAddressAtRegister(String registerName) {
+        writeAddress(registerName);
+        write("A=M\n");
     }
 
     /**
-     * Writes assembly code to get the address of the register (not the value
-     * in the register) plus an offset
+     * Writes assembly code to get the address in the register plus an offset
      * @param registerName
      * @param offset
      */
-    private void writeGetAddressOfRegisterWithOffset(String registerName, int offset) {
-        write("@" + registerName + "\n" +
-              "D=A\n" +
-              "@" + offset + "\n" +
-              "A=D+A\n");
+    private void writeGetAddressAtRegisterWithOffset(String registerName, int offset) {
+        writeAddress(registerName);
+        write("D=M\n");
+        writeAddress(offset);
+        write("A=D+A\n");
     }
 
     /**
      * Writes code to push register D to the stack
      */
     private void writePushDataToStack() {
-        write("@SP\n" +
-              "A=M\n" +
-              "M=D\n" +
-              "@SP\n" +
-              "M=M+1\n");
+        write(PUSH_DATA);   // @SP / A=M / M=D / @SP / M=M+1
     }
 
     /**
      * Writes code to pop the stack and put it into register D
      */
     private void writePopStackToData() {
-        write("@SP\n" +
-              "M=M-1\n" + 
-              "A=M\n" + 
-              "D=M\n");
+        write(POP_DATA);    // @SP / M=M-1 / A=M / D=M
     }
 
     /**
@@ -403,12 +1505,148 @@ public class CodeWriter {
      */
     private void writeRestoreRegisterWithOffset(String registerName, int offset) {
         write("@R13\n" +
-              "D=M\n" +                     // D = value to restore
-              "@" + offset + "\n" +
-              "A=D-A\n" +
-              "D=M\n" +
-              "@" + registerName + "\n" +
-              "M=D\n");                     // restore value
+              "D=M\n");                     // D = value to restore
+        writeAddress(offset);
+        write("A=D-A\n" +
+              "D=M\n");
+        writeAddress(registerName);
+        write("M=D\n");                     // restore value
+    }
+
+    /**
+     * Writes an A-instruction that loads a symbol
+     * @param symbol Register, label or function name
+     */
+    private void writeAddress(String symbol) {
+        write("@");
+        write(symbol);
+        write("\n");
+    }
+
+    /**
+     * Writes an A-instruction that loads a number
+     * @param value Non-negative constant or address
+     */
+    private void writeAddress(int value) {
+        write("@");
+        writeNumber(value);
+        write("\n");
+    }
+
+    /**
+     * Writes an A-instruction that loads a label scoped to a function
+     * @param scope Function name
+     * @param label Label name
+     */
+    private void writeAddress(String scope, String label) {
+        write("@");
+        write(scope);
+        write(".");
+        write(label);
+        write("\n");
+    }
+
+    /**
+     * Writes an A-instruction that loads a static variable
+     * @param scope File name without the extension
+     * @param index Index of the static variable
+     */
+    private void writeAddress(String scope, int index) {
+        write("@");
+        write(scope);
+        write(".");
+        writeNumber(index);
+        write("\n");
+    }
+
+    /**
+     * Writes an A-instruction that loads a label generated by this writer
+     * @param kind Kind of label, e.g. "RETURN_"
+     * @param number Number of the label
+     */
+    private void writeGeneratedAddress(String kind, int number) {
+        write("@");
+        write(labelPrefix);
+        write(kind);
+        writeNumber(number);
+        write("\n");
+    }
+
+    /**
+     * Declares a function label
+     * @param name Function name
+     */
+    private void writeLabelDeclaration(String name) {
+        write("(");
+        write(name);
+        write(")\n");
+    }
+
+    /**
+     * Declares a label scoped to a function
+     * @param scope Function name
+     * @param label Label name
+     */
+    private void writeLabelDeclaration(String scope, String label) {
+        write("(");
+        write(scope);
+        write(".");
+        write(label);
+        write(")\n");
+    }
+
+    /**
+     * Declares a label generated by this writer
+     * @param kind Kind of label, e.g. "RETURN_"
+     * @param number Number of the label
+     */
+    private void writeGeneratedLabel(String kind, int number) {
+        write("(");
+        write(labelPrefix);
+        write(kind);
+        writeNumber(number);
+        write(")\n");
+    }
+
+    /**
+     * Writes a number in decimal without creating a string
+     * @param value Number to write
+     */
+    private void writeNumber(int value) {
+        int start = digits.length;
+        long remaining = Math.abs((long) value);
+
+        do {
+            digits[--start] = (char) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining > 0);
+
+        if (value < 0)
+            digits[--start] = '-';
+
+        try {
+            writer.write(digits, start, digits.length - start);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write to output file!");
+        }
+    }
+
+    /**
+     * Writes a pre-encoded instruction sequence
+     * @param fragment Encoded instructions
+     */
+    private void write(byte[] fragment) {
+        if (writer == output) {  // copy the bytes straight into the buffer
+            output.write(fragment);
+            return;
+        }
+
+        try {
+            for (byte c : fragment)
+                writer.write(c);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write to output file!");
+        }
     }
 
     /**
@@ -417,7 +1655,7 @@ public class CodeWriter {
      */
     private void write(String str) {
         try {
-            writer.append(str);
+            writer.write(str);
         } catch (IOException e) {
             throw new IllegalStateException("Unable to write to output file!");
         }
@@ -10,5 +10,6 @@ public enum Command {
     C_IF,
     C_FUNCTION,
     C_RETURN,
-    C_CALL
+    C_CALL,
+    C_DROP      // removes values from the stack, not part of the VM language
 }
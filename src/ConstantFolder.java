@@ -0,0 +1,127 @@
+/*
+ * Optimization pass that evaluates arithmetic on constants at translation
+ * time, e.g. push constant 2 / push constant 3 / add becomes push constant 5
+ */
+public class ConstantFolder {
+    private int numRemoved;
+
+    /**
+     * Folds the constants of every function of a module
+     * @param module Module to fold, modified in place
+     */
+    public void fold(VMModule module) {
+        for (int i = 0; i < module.getFunctions().size(); i++)
+            module.getFunctions().set(i, fold(module.getFunctions().get(i)));
+    }
+
+    /**
+     * Folds the constants of a function. Folded constants are 16-bit two's
+     * complement values and may be negative.
+     * @param function Function to fold
+     * @return Function with the folded commands
+     */
+    public VMFunction fold(VMFunction function) {
+        VMFunction folded = new VMFunction(function.getName(), function.getNumLocals());
+
+        for (int i = 0; i < function.size(); i++) {
+            folded.add(function.getOpcode(i), function.getSegment(i), function.getIndex(i),
+                    function.getLabel(i));
+
+            while (foldLastCommand(folded))  // a folded constant may be folded again
+                ;
+        }
+
+        return folded;
+    }
+
+    /**
+     * Returns the number of commands removed by folding so far
+     * @return Number of removed commands
+     */
+    public int getNumRemoved() {
+        return numRemoved;
+    }
+
+    /**
+     * Replaces the last command and the constants it operates on with a
+     * single push constant
+     * @param function Function being built
+     * @return True if the last command was folded
+     */
+    private boolean foldLastCommand(VMFunction function) {
+        int last = function.size() - 1;
+        Opcode opcode = function.getOpcode(last);
+
+        if (opcode.getCommandType() != Command.C_ARITHMETIC)
+            return false;
+
+        if (opcode == Opcode.NEG || opcode == Opcode.NOT) {
+            if (!isConstant(function, last - 1))
+                return false;
+
+            int y = (short) function.getIndex(last - 1);
+            replaceLast(function, 2, opcode == Opcode.NEG ? -y : ~y);
+            return true;
+        }
+
+        if (!isConstant(function, last - 2) || !isConstant(function, last - 1))
+            return false;
+
+        int x = (short) function.getIndex(last - 2);
+        int y = (short) function.getIndex(last - 1);
+        int result;
+
+        switch (opcode) {
+            case ADD:
+                result = x + y;
+                break;
+            case SUB:
+                result = x - y;
+                break;
+            case AND:
+                result = x & y;
+                break;
+            case OR:
+                result = x | y;
+                break;
+            // comparisons test the sign of the 16-bit difference, like the generated code
+            case EQ:
+                result = (short) (x - y) == 0 ? -1 : 0;
+                break;
+            case GT:
+                result = (short) (x - y) > 0 ? -1 : 0;
+                break;
+            case LT:
+                result = (short) (x - y) < 0 ? -1 : 0;
+                break;
+            default:
+                return false;
+        }
+
+        replaceLast(function, 3, result);
+        return true;
+    }
+
+    /**
+     * Checks if a command is a push constant
+     * @param function Function being built
+     * @param i Command index, may be negative
+     * @return True if the command pushes a constant
+     */
+    private static boolean isConstant(VMFunction function, int i) {
+        return i >= 0 && function.getOpcode(i) == Opcode.PUSH
+                && function.getSegment(i) == Segment.CONSTANT;
+    }
+
+    /**
+     * Replaces the last commands with a push of a constant
+     * @param function Function being built
+     * @param count Number of commands to replace
+     * @param value Value of the constant, wrapped to 16 bits
+     */
+    private void replaceLast(VMFunction function, int count, int value) {
+        function.removeLast(count);
+        function.add(Opcode.PUSH, Segment.CONSTANT, (short) value, null);
+        numRemoved += count - 1;
+    }
+}
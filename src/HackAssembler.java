@@ -0,0 +1,211 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Two-pass assembler for HACK assembly, used to run the translator output
+ * inside the emulator
+ */
+public class HackAssembler {
+    private static final Map<String, Integer> COMP = new HashMap<>();
+    private static final Map<String, Integer> PREDEFINED = new HashMap<>();
+
+    static {
+        String[] comps = {
+            "0", "101010", "1", "111111", "-1", "111010", "D", "001100",
+            "A", "110000", "!D", "001101", "!A", "110001", "-D", "001111",
+            "-A", "110011", "D+1", "011111", "A+1", "110111", "D-1", "001110",
+            "A-1", "110010", "D+A", "000010", "D-A", "010011", "A-D", "000111",
+            "D&A", "000000", "D|A", "010101"
+        };
+
+        for (int i = 0; i < comps.length; i += 2) {
+            int bits = Integer.parseInt(comps[i + 1], 2);
+            COMP.put(comps[i], bits);   // a = 0 uses A
+
+            if (comps[i].indexOf('A') >= 0)   // a = 1 uses M
+                COMP.put(comps[i].replace('A', 'M'), bits | 0x40);
+        }
+
+        // commutative forms accepted by the standard assembler
+        COMP.put("A+D", COMP.get("D+A"));
+        COMP.put("M+D", COMP.get("D+M"));
+        COMP.put("A&D", COMP.get("D&A"));
+        COMP.put("M&D", COMP.get("D&M"));
+        COMP.put("A|D", COMP.get("D|A"));
+        COMP.put("M|D", COMP.get("D|M"));
+
+        for (int i = 0; i < 16; i++)
+            PREDEFINED.put("R" + i, i);
+
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+    }
+
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> variables = new HashMap<>();
+
+    /**
+     * Assembles a HACK assembly file
+     * @param asmFile Assembly file produced by the translator
+     * @return ROM image, one instruction per element
+     */
+    public short[] assemble(File asmFile) {
+        List<String> lines = new ArrayList<>();
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(asmFile))) {
+            String line;
+
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        } catch (FileNotFoundException e) {
+            throw new IllegalArgumentException("File not found, is directory, or cannot be opened!");
+        } catch (IOException e) {
+            throw new IllegalStateException("IO exception: " + e.getMessage());
+        }
+
+        return assemble(lines);
+    }
+
+    /**
+     * Assembles HACK assembly lines
+     * @param lines Assembly source lines
+     * @return ROM image, one instruction per element
+     */
+    public short[] assemble(List<String> lines) {
+        List<String> instructions = new ArrayList<>();
+        labels.clear();
+        variables.clear();
+
+        // first pass: strip comments and record label addresses
+        for (String line : lines) {
+            int commentIndex = line.indexOf("//");
+
+            if (commentIndex >= 0)
+                line = line.substring(0, commentIndex);
+
+            line = line.trim();
+
+            if (line.isEmpty())
+                continue;
+
+            if (line.startsWith("("))
+                labels.put(line.substring(1, line.length() - 1), instructions.size());
+            else
+                instructions.add(line);
+        }
+
+        // second pass: encode, allocating variables from address 16
+        short[] rom = new short[instructions.size()];
+        int nextVariable = 16;
+
+        for (int i = 0; i < rom.length; i++) {
+            String instruction = instructions.get(i);
+
+            if (instruction.startsWith("@")) {
+                String symbol = instruction.substring(1);
+                int value;
+
+                if (Character.isDigit(symbol.charAt(0)))
+                    value = Integer.parseInt(symbol);
+                else if (PREDEFINED.containsKey(symbol))
+                    value = PREDEFINED.get(symbol);
+                else if (labels.containsKey(symbol))
+                    value = labels.get(symbol);
+                else {
+                    Integer address = variables.get(symbol);
+
+                    if (address == null) {
+                        address = nextVariable++;
+                        variables.put(symbol, address);
+                    }
+
+                    value = address;
+                }
+
+                rom[i] = (short) value;
+            } else {
+                rom[i] = (short) encodeComputation(instruction, i);
+            }
+        }
+
+        return rom;
+    }
+
+    /**
+     * Returns the label table of the last assembled program
+     * @return Map from label name to ROM address
+     */
+    public Map<String, Integer> getLabels() {
+        return labels;
+    }
+
+    /**
+     * Returns the address of a predefined symbol
+     * @param symbol Symbol name, e.g. SP or R13
+     * @return Address, or null if the symbol is not predefined
+     */
+    static Integer getPredefinedAddress(String symbol) {
+        return PREDEFINED.get(symbol);
+    }
+
+    /**
+     * Encodes a C-instruction of the form dest=comp;jump
+     * @param instruction Instruction text
+     * @param address ROM address, used for error messages
+     * @return Encoded instruction
+     */
+    static int encodeComputation(String instruction, int address) {
+        String dest = "";
+        String jump = "";
+        int equalsIndex = instruction.indexOf('=');
+        int semicolonIndex = instruction.indexOf(';');
+
+        if (semicolonIndex >= 0) {
+            jump = instruction.substring(semicolonIndex + 1);
+            instruction = instruction.substring(0, semicolonIndex);
+        }
+
+        if (equalsIndex >= 0) {
+            dest = instruction.substring(0, equalsIndex);
+            instruction = instruction.substring(equalsIndex + 1);
+        }
+
+        Integer comp = COMP.get(instruction);
+
+        if (comp == null)
+            throw new IllegalStateException("Syntax error (instruction " + address
+                    + "): unknown computation \"" + instruction + "\"");
+
+        int destBits = (dest.indexOf('A') >= 0 ? 4 : 0) | (dest.indexOf('D') >= 0 ? 2 : 0)
+                | (dest.indexOf('M') >= 0 ? 1 : 0);
+        int jumpBits;
+
+        switch (jump) {
+            case "":    jumpBits = 0; break;
+            case "JGT": jumpBits = 1; break;
+            case "JEQ": jumpBits = 2; break;
+            case "JGE": jumpBits = 3; break;
+            case "JLT": jumpBits = 4; break;
+            case "JNE": jumpBits = 5; break;
+            case "JLE": jumpBits = 6; break;
+            case "JMP": jumpBits = 7; break;
+            default:
+                throw new IllegalStateException("Syntax error (instruction " + address
+                        + "): unknown jump \"" + jump + "\"");
+        }
+
+        return 0xE000 | (comp << 6) | (destBits << 3) | jumpBits;
+    }
+}
@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writer that encodes HACK instructions into machine words as they are
+ * written and writes them as a .hack file when it is closed. Labels go into
+ * a symbol table when they are declared, references to labels that are not
+ * declared yet are fixed up at the end, and the remaining symbols become
+ * variables from address 16 in order of first use, like in the assembler.
+ */
+public class HackBinaryWriter extends Writer {
+    private static final int ROM_SIZE = 32768;
+    private static final int FIRST_VARIABLE = 16;
+    private static final int CACHE_SIZE = 256;  // power of two
+
+    private final AsciiWriter out;
+    private final StringBuilder line;
+    private final Map<String, Integer> labels;
+    private final String[] cachedInstructions;  // recently encoded C-instructions by hash
+    private final int[] cachedWords;
+    private final List<String> fixUpSymbols;
+    private int[] fixUpAddresses;
+    private short[] rom;
+    private int size;
+
+    /**
+     * Creates a writer that writes the machine code to an ASCII writer
+     * @param out Writer for the .hack file
+     */
+    public HackBinaryWriter(AsciiWriter out) {
+        this.out = out;
+        line = new StringBuilder();
+        labels = new HashMap<>();
+        cachedInstructions = new String[CACHE_SIZE];
+        cachedWords = new int[CACHE_SIZE];
+        fixUpSymbols = new ArrayList<>();
+        fixUpAddresses = new int[1024];
+        rom = new short[4096];
+    }
+
+    @Override
+    public void write(int c) {
+        if (c != '\n') {
+            line.append((char) c);
+            return;
+        }
+
+        if (line.length() > 0)
+            encodeLine();
+
+        line.setLength(0);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            write(cbuf[i]);
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        for (int i = off; i < off + len; i++)
+            write(str.charAt(i));
+    }
+
+    /**
+     * Does nothing, since the machine code can only be written once every
+     * label is known
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Fixes up the forward references, writes the machine code and closes
+     * the underlying writer
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Map<String, Integer> variables = new HashMap<>();
+
+        for (int i = 0; i < fixUpSymbols.size(); i++) {
+            String symbol = fixUpSymbols.get(i);
+            Integer address = labels.get(symbol);
+
+            if (address == null) {  // not a label, so a variable
+                address = variables.get(symbol);
+
+                if (address == null) {
+                    address = FIRST_VARIABLE + variables.size();
+                    variables.put(symbol, address);
+                }
+            }
+
+            rom[fixUpAddresses[i]] = (short) (int) address;
+        }
+
+        byte[] word = new byte[17];
+        word[16] = '\n';
+
+        for (int i = 0; i < size; i++) {
+            for (int bit = 0; bit < 16; bit++)
+                word[bit] = (byte) ((rom[i] >> (15 - bit) & 1) == 0 ? '0' : '1');
+
+            out.write(word);
+        }
+
+        out.close();
+    }
+
+    /**
+     * Encodes the instruction or label declaration in the line buffer
+     */
+    private void encodeLine() {
+        char first = line.charAt(0);
+
+        if (first == '(') {
+            String label = line.substring(1, line.length() - 1);
+
+            if (labels.put(label, size) != null)
+                throw new IllegalStateException("Label \"" + label + "\" is declared more than once!");
+        } else if (first == '@') {
+            encodeAddress();
+        } else {
+            encodeComputation();
+        }
+    }
+
+    /**
+     * Encodes the C-instruction in the line buffer. Programs use few
+     * distinct C-instructions, so most are found in the cache without
+     * creating a string.
+     */
+    private void encodeComputation() {
+        int hash = 0;
+
+        for (int i = 0; i < line.length(); i++)
+            hash = 31 * hash + line.charAt(i);
+
+        int slot = (hash ^ hash >>> 8) & (CACHE_SIZE - 1);
+
+        if (cachedInstructions[slot] == null || !cachedInstructions[slot].contentEquals(line)) {
+            cachedInstructions[slot] = line.toString();
+            cachedWords[slot] = HackAssembler.encodeComputation(cachedInstructions[slot], size);
+        }
+
+        add(cachedWords[slot]);
+    }
+
+    /**
+     * Encodes the A-instruction in the line buffer, recording a fix-up if it
+     * refers to a symbol that is not known yet
+     */
+    private void encodeAddress() {
+        if (Character.isDigit(line.charAt(1))) {
+            int value = 0;
+
+            for (int i = 1; i < line.length(); i++)
+                value = value * 10 + line.charAt(i) - '0';
+
+            add(value);
+            return;
+        }
+
+        String symbol = line.substring(1);
+        Integer address = HackAssembler.getPredefinedAddress(symbol);
+
+        if (address == null)
+            address = labels.get(symbol);
+
+        if (address != null) {
+            add(address);
+            return;
+        }
+
+        if (fixUpSymbols.size() == fixUpAddresses.length)
+            fixUpAddresses = Arrays.copyOf(fixUpAddresses, fixUpAddresses.length * 2);
+
+        fixUpAddresses[fixUpSymbols.size()] = size;
+        fixUpSymbols.add(symbol);
+        add(0); // placeholder until the symbol is resolved
+    }
+
+    /**
+     * Appends a word to the ROM image
+     * @param word Encoded instruction
+     */
+    private void add(int word) {
+        if (size == ROM_SIZE)
+            throw new IllegalStateException("Program does not fit in " + ROM_SIZE + " words of ROM!");
+
+        if (size == rom.length)
+            rom = Arrays.copyOf(rom, rom.length * 2);
+
+        rom[size++] = (short) word;
+    }
+}
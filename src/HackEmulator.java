@@ -0,0 +1,221 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * HACK CPU emulator used to measure the cycle counts of translated programs
+ */
+public class HackEmulator {
+    private final short[] rom;
+    private final short[] ram;
+    private final long[] cyclesByAddress;
+    private int a, d, pc;
+    private long cycles;
+    private boolean halted;
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) { // check if there is a valid number of arguments
+            System.out.println("Usage: HackEmulator file.asm [maxCycles]");
+            return;
+        }
+
+        File file = new File(args[0]);
+
+        if (!file.isFile()) {   // check if the file exists
+            System.out.println("File does not exist!");
+            return;
+        }
+
+        long maxCycles = args.length == 2 ? Long.parseLong(args[1]) : 100_000_000L;
+        HackAssembler assembler = new HackAssembler();
+        HackEmulator emulator = new HackEmulator(assembler.assemble(file));
+
+        emulator.run(maxCycles);
+        System.out.println((emulator.isHalted() ? "Halted" : "Stopped") + " after "
+                + emulator.getCycles() + " cycles");
+
+        for (String line : emulator.formatFunctionCycles(assembler.getLabels()))
+            System.out.println(line);
+    }
+
+    /**
+     * Creates an emulator with zeroed RAM for the given program
+     * @param rom Assembled program
+     */
+    public HackEmulator(short[] rom) {
+        if (rom == null) {  // check if program is null
+            throw new IllegalArgumentException("Program should not be null!");
+        }
+
+        this.rom = rom;
+        ram = new short[32768];
+        cyclesByAddress = new long[rom.length];
+    }
+
+    /**
+     * Runs the program until it halts or the cycle limit is reached. A
+     * program halts when it jumps to a jump to itself (@LOOP / 0;JMP).
+     * @param maxCycles Maximum number of instructions to execute
+     * @return True if the program halted, false if it was stopped
+     */
+    public boolean run(long maxCycles) {
+        long limit = cycles + maxCycles;
+
+        while (!halted && cycles < limit)
+            step();
+
+        return halted;
+    }
+
+    /**
+     * Executes a single instruction
+     */
+    public void step() {
+        if (pc < 0 || pc >= rom.length)
+            throw new IllegalStateException("Program counter out of range: " + pc);
+
+        int instruction = rom[pc] & 0xFFFF;
+        cyclesByAddress[pc]++;
+        cycles++;
+
+        if ((instruction & 0x8000) == 0) {  // A-instruction
+            a = instruction;
+            pc++;
+            return;
+        }
+
+        int y = (instruction & 0x1000) != 0 ? ram[a & 0x7FFF] : (short) a;
+        int out = compute((instruction >> 6) & 0x3F, d, y);
+
+        // store to M before A changes
+        if ((instruction & 0x08) != 0)
+            ram[a & 0x7FFF] = (short) out;
+
+        if ((instruction & 0x10) != 0)
+            d = (short) out;
+
+        int oldA = a;
+
+        if ((instruction & 0x20) != 0)
+            a = out & 0xFFFF;
+
+        boolean jump = ((instruction & 0x4) != 0 && out < 0)
+                || ((instruction & 0x2) != 0 && out == 0)
+                || ((instruction & 0x1) != 0 && out > 0);
+
+        if (!jump) {
+            pc++;
+        } else {
+            int target = (instruction & 0x20) != 0 ? oldA : a;
+
+            // a jump back to "@self / 0;JMP" is the conventional halt loop
+            if (target == pc - 1 && rom[target] == target)
+                halted = true;
+
+            pc = target;
+        }
+    }
+
+    /**
+     * Returns whether the program reached its halt loop
+     * @return True if halted
+     */
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Returns the number of executed instructions
+     * @return Cycle count
+     */
+    public long getCycles() {
+        return cycles;
+    }
+
+    /**
+     * Reads a RAM word
+     * @param address RAM address
+     * @return Value at address
+     */
+    public int getRam(int address) {
+        return ram[address];
+    }
+
+    /**
+     * Writes a RAM word
+     * @param address RAM address
+     * @param value Value to store
+     */
+    public void setRam(int address, int value) {
+        ram[address] = (short) value;
+    }
+
+    /**
+     * Sums the cycles spent in each function. An address belongs to the
+     * closest function label before it, where function labels are those of
+     * the form Class.function emitted by CodeWriter.writeFunction. The
+     * shared routines, whose labels start with $$, are summed as
+     * "(runtime)" instead of being charged to the bootstrap or a function.
+     * @param labels Label table of the assembled program
+     * @return Lines of "function cycles", most expensive first
+     */
+    public List<String> formatFunctionCycles(Map<String, Integer> labels) {
+        String[] owner = new String[rom.length];
+
+        for (Map.Entry<String, Integer> label : labels.entrySet()) {
+            String name = label.getKey();
+
+            if (label.getValue() >= rom.length)
+                continue;
+
+            if (name.startsWith("$$"))  // shared call, return and comparison routines
+                owner[label.getValue()] = "(runtime)";
+            else if (name.indexOf('.') == name.lastIndexOf('.') && name.indexOf('.') > 0
+                    && name.indexOf('$') < 0)
+                owner[label.getValue()] = name;
+        }
+
+        Map<String, Long> totals = new HashMap<>();
+        String current = "(bootstrap)";
+
+        for (int i = 0; i < rom.length; i++) {
+            if (owner[i] != null)
+                current = owner[i];
+
+            if (cyclesByAddress[i] > 0)
+                totals.merge(current, cyclesByAddress[i], Long::sum);
+        }
+
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(totals.entrySet());
+        entries.sort((x, y) -> Long.compare(y.getValue(), x.getValue()));
+        List<String> lines = new ArrayList<>();
+
+        for (Map.Entry<String, Long> entry : entries)
+            lines.add(entry.getKey() + " " + entry.getValue());
+
+        return lines;
+    }
+
+    /**
+     * Evaluates the HACK ALU
+     * @param control zx nx zy ny f no bits
+     * @param x D input
+     * @param y A or M input
+     * @return ALU output as a signed 16-bit value
+     */
+    private static int compute(int control, int x, int y) {
+        if ((control & 0x20) != 0) x = 0;
+        if ((control & 0x10) != 0) x = ~x;
+        if ((control & 0x08) != 0) y = 0;
+        if ((control & 0x04) != 0) y = ~y;
+
+        int out = (control & 0x02) != 0 ? x + y : x & y;
+
+        if ((control & 0x01) != 0)
+            out = ~out;
+
+        return (short) out;
+    }
+}
@@ -0,0 +1,258 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Whole-program optimization pass that replaces calls to small leaf
+ * functions with their bodies. The arguments stay on the stack where the
+ * call would have left them, the locals are pushed above them, and both
+ * are addressed relative to SP through the stack segment. At the end the
+ * return value is moved into the slot of the first argument.
+ */
+public class Inliner {
+    private static final int UNKNOWN_DEPTH = Integer.MIN_VALUE;
+
+    private final int maxSize;
+    private final Map<String, VMFunction> functions;
+    private final Map<String, String> fileNames;
+    private int numInlined;
+
+    /**
+     * Creates an inliner for a program
+     * @param modules Modules of every file in the program
+     * @param maxSize Largest number of commands in an inlined function
+     */
+    public Inliner(List<VMModule> modules, int maxSize) {
+        this.maxSize = maxSize;
+        functions = new HashMap<>();
+        fileNames = new HashMap<>();
+
+        for (VMModule module : modules) {
+            for (VMFunction function : module.getFunctions()) {
+                if (function.getName() != null) {
+                    functions.put(function.getName(), function);
+                    fileNames.put(function.getName(), module.getFileName());
+                }
+            }
+        }
+    }
+
+    /**
+     * Inlines the calls in every function of a module
+     * @param module Module to inline into, modified in place
+     */
+    public void inline(VMModule module) {
+        for (int i = 0; i < module.getFunctions().size(); i++)
+            module.getFunctions().set(i, inline(module.getFunctions().get(i), module.getFileName()));
+    }
+
+    /**
+     * Returns the number of call sites inlined so far
+     * @return Number of inlined calls
+     */
+    public int getNumInlined() {
+        return numInlined;
+    }
+
+    /**
+     * Inlines the calls in a function
+     * @param function Function to inline into
+     * @param fileName Name of the file containing the function
+     * @return Function with the inlined calls
+     */
+    private VMFunction inline(VMFunction function, String fileName) {
+        VMFunction inlined = new VMFunction(function.getName(), function.getNumLocals());
+
+        for (int i = 0; i < function.size(); i++) {
+            Opcode opcode = function.getOpcode(i);
+
+            if (opcode == Opcode.CALL && canInline(function.getLabel(i), function.getIndex(i), fileName)) {
+                writeBody(inlined, functions.get(function.getLabel(i)), function.getIndex(i));
+                numInlined++;
+                continue;
+            }
+
+            inlined.add(opcode, function.getSegment(i), function.getIndex(i), function.getLabel(i));
+        }
+
+        return inlined;
+    }
+
+    /**
+     * Checks if a call can be replaced with the body of the callee. The
+     * callee must be small, call nothing, leave THIS and THAT alone, read
+     * only the arguments it is given, use statics only when it is in the
+     * same file as the caller and have a known stack depth at every command.
+     * @param name Name of the callee
+     * @param numArgs Number of arguments of the call
+     * @param fileName Name of the file containing the caller
+     * @return True if the call can be inlined
+     */
+    private boolean canInline(String name, int numArgs, String fileName) {
+        VMFunction callee = functions.get(name);
+
+        if (callee == null || callee.size() > maxSize)
+            return false;
+
+        for (int i = 0; i < callee.size(); i++) {
+            Opcode opcode = callee.getOpcode(i);
+            Segment segment = callee.getSegment(i);
+
+            if (opcode == Opcode.CALL)
+                return false;
+
+            if (opcode == Opcode.POP && segment == Segment.POINTER)   // THIS and THAT are restored by return
+                return false;
+
+            if (segment == Segment.ARGUMENT && callee.getIndex(i) >= numArgs)
+                return false;
+
+            if (segment == Segment.LOCAL && callee.getIndex(i) >= callee.getNumLocals())
+                return false;
+
+            if (segment == Segment.STATIC && !fileNames.get(name).equals(fileName))
+                return false;
+        }
+
+        return computeDepths(callee) != null;
+    }
+
+    /**
+     * Computes the number of values the function has pushed above its locals
+     * before each command, following jumps to their labels
+     * @param function Function to analyze
+     * @return Depth before each command, or null if a depth is unknown, does
+     * not match between paths, or a return does not leave exactly one value
+     */
+    private static int[] computeDepths(VMFunction function) {
+        int[] depths = new int[function.size()];
+        int[] labelDepths = new int[function.getLabelCount()];
+        int depth = 0;
+
+        Arrays.fill(labelDepths, UNKNOWN_DEPTH);
+
+        for (int i = 0; i < function.size(); i++) {
+            Opcode opcode = function.getOpcode(i);
+
+            if (opcode == Opcode.LABEL) {
+                int labelId = function.getLabelId(i);
+
+                if (depth == UNKNOWN_DEPTH)             // only reachable by a jump
+                    depth = labelDepths[labelId];
+                else if (labelDepths[labelId] != UNKNOWN_DEPTH && labelDepths[labelId] != depth)
+                    return null;
+
+                labelDepths[labelId] = depth;
+            }
+
+            if (depth == UNKNOWN_DEPTH)  // unreachable code or a backward jump target
+                return null;
+
+            depths[i] = depth;
+
+            switch (opcode) {
+                case PUSH:
+                    depth++;
+                    break;
+
+                case POP: case ADD: case SUB: case EQ: case GT: case LT: case AND: case OR:
+                    depth--;
+                    break;
+
+                case IF_GOTO: case GOTO:
+                    if (opcode == Opcode.IF_GOTO)
+                        depth--;
+
+                    int labelId = function.getLabelId(i);
+
+                    if (labelDepths[labelId] != UNKNOWN_DEPTH && labelDepths[labelId] != depth)
+                        return null;
+
+                    labelDepths[labelId] = depth;
+
+                    if (opcode == Opcode.GOTO)
+                        depth = UNKNOWN_DEPTH;
+                    break;
+
+                case RETURN:
+                    if (depth != 1)
+                        return null;
+
+                    depth = UNKNOWN_DEPTH;
+                    break;
+
+                default:    // neg, not and label keep the depth
+                    break;
+            }
+
+            if (depth < 0 && depth != UNKNOWN_DEPTH)    // pops values of the caller
+                return null;
+        }
+
+        return depth == UNKNOWN_DEPTH ? depths : null;  // must not fall off the end
+    }
+
+    /**
+     * Appends the body of a callee in place of a call
+     * @param caller Function being built
+     * @param callee Function to inline
+     * @param numArgs Number of arguments of the call
+     */
+    private void writeBody(VMFunction caller, VMFunction callee, int numArgs) {
+        int[] depths = computeDepths(callee);
+        int numLocals = callee.getNumLocals();
+        String labelPrefix = "INLINE_" + numInlined + "$";
+        String endLabel = labelPrefix + "END";
+        boolean jumpsToEnd = false;
+
+        for (int i = 0; i < numLocals; i++)
+            caller.add(Opcode.PUSH, Segment.CONSTANT, 0, null);
+
+        for (int i = 0; i < callee.size(); i++) {
+            Opcode opcode = callee.getOpcode(i);
+            Segment segment = callee.getSegment(i);
+            int index = callee.getIndex(i);
+
+            // stack i addresses RAM[SP - 1 - i], with SP taken after a pop
+            int depth = opcode == Opcode.POP ? depths[i] - 1 : depths[i];
+
+            switch (opcode) {
+                case PUSH: case POP:
+                    if (segment == Segment.ARGUMENT)
+                        caller.add(opcode, Segment.STACK, numArgs - 1 - index + numLocals + depth, null);
+                    else if (segment == Segment.LOCAL)
+                        caller.add(opcode, Segment.STACK, numLocals - 1 - index + depth, null);
+                    else
+                        caller.add(opcode, segment, index, null);
+                    break;
+
+                case LABEL: case GOTO: case IF_GOTO:
+                    caller.add(opcode, null, 0, labelPrefix + callee.getLabel(i));
+                    break;
+
+                case RETURN:
+                    if (i < callee.size() - 1) {
+                        caller.add(Opcode.GOTO, null, 0, endLabel);
+                        jumpsToEnd = true;
+                    }
+                    break;
+
+                default:
+                    caller.add(opcode, segment, index, callee.getLabel(i));
+            }
+        }
+
+        if (jumpsToEnd)
+            caller.add(Opcode.LABEL, null, 0, endLabel);
+
+        int frameSize = numArgs + numLocals;
+
+        if (frameSize > 0) {    // move the return value to the first argument
+            caller.add(Opcode.POP, Segment.STACK, frameSize - 1, null);
+
+            if (frameSize > 1)
+                caller.add(Opcode.DROP, null, frameSize - 1, null);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Enum of VM commands in the intermediate representation
+ */
+public enum Opcode {
+    ADD("add", Command.C_ARITHMETIC),
+    SUB("sub", Command.C_ARITHMETIC),
+    NEG("neg", Command.C_ARITHMETIC),
+    EQ("eq", Command.C_ARITHMETIC),
+    GT("gt", Command.C_ARITHMETIC),
+    LT("lt", Command.C_ARITHMETIC),
+    AND("and", Command.C_ARITHMETIC),
+    OR("or", Command.C_ARITHMETIC),
+    NOT("not", Command.C_ARITHMETIC),
+    PUSH("push", Command.C_PUSH),
+    POP("pop", Command.C_POP),
+    LABEL("label", Command.C_LABEL),
+    GOTO("goto", Command.C_GOTO),
+    IF_GOTO("if-goto", Command.C_IF),
+    CALL("call", Command.C_CALL),
+    RETURN("return", Command.C_RETURN),
+    DROP("drop", Command.C_DROP);    // removes index values from the stack, not part of the VM language
+
+    private static final Opcode[] VALUES = values();
+
+    private final String name;
+    private final Command commandType;
+
+    private Opcode(String name, Command commandType) {
+        this.name = name;
+        this.commandType = commandType;
+    }
+
+    /**
+     * Returns the opcode with the given ordinal
+     * @param ordinal Ordinal of the opcode
+     * @return Opcode
+     */
+    public static Opcode fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the VM text of the command
+     * @return Command name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the command type of the opcode
+     * @return Command type enum
+     */
+    public Command getCommandType() {
+        return commandType;
+    }
+}
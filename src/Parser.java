@@ -1,15 +1,37 @@
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 
 public class Parser {
-    private BufferedReader reader;
-    private String currentLine;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long MAP_THRESHOLD = 1 << 20;
+    private static final int MAX_TOKENS = 4;
+
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private int position, dataEnd;
+    private boolean endOfFile;
+
+    private boolean hasLine;
+    private int lineStart, lineEnd;
     private int currentLineNumber;
+    private String fileName;
+
+    private final int[] tokenStarts = new int[MAX_TOKENS];
+    private final int[] tokenEnds = new int[MAX_TOKENS];
+    private int numTokens;
+
+    private String[] symbols;
+    private int numSymbols;
 
     private Command commandType;
+    private Opcode opcode;
+    private Segment segment;
+    private String symbol;
     private String arg1;
     private int arg2;
 
@@ -19,12 +41,29 @@ public class Parser {
         }
 
         try {
-            // create a buffered reader for the input file
-            reader = new BufferedReader(new FileReader(inputFile));
+            // create a channel for the input file
+            channel = new FileInputStream(inputFile).getChannel();
         } catch (FileNotFoundException e) { // file error
             throw new IllegalArgumentException("File not found, is directory, or cannot be opened!");
         }
 
+        try {
+            long size = channel.size();
+
+            if (size >= MAP_THRESHOLD && size <= Integer.MAX_VALUE) {
+                // scan large files in place, files over 2 GB are streamed
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                dataEnd = (int) size;
+                endOfFile = true;
+            } else {
+                buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("IO exception: " + e.getMessage());
+        }
+
+        symbols = new String[64];
+        fileName = inputFile.getName();
         advanceToNextLine();
     }
 
@@ -33,76 +72,113 @@ public class Parser {
      * @return True if there are more commands, false otherwise
      */
     public boolean hasMoreCommands() {
-        return currentLine != null && currentLine.length() >= 1;
+        return hasLine;
     }
 
     /**
-     * Advances to the next command in the input file and processes 
-     * the command type and arguments
+     * Advances to the next command in the input file and processes
+     * the command type and arguments. The line is scanned in place, so the
+     * only strings created are the first occurrences of labels and function
+     * names.
      */
     public void advance() {
-        // split by whitespace
-        String[] tokens = currentLine.split("\\s+");
-        String command = tokens[0].toLowerCase();
+        tokenize();
+
+        if (!recognizeCommand(tokenStarts[0], tokenEnds[0]))
+            throw new IllegalStateException("Syntax error (line " + currentLineNumber
+                    + "): \"" + token(0).toLowerCase() + "\" is not a command");
 
-        switch (command) {
-            case "add": case "sub": case "neg": case "eq": case "gt":
-            case "lt": case "and": case "or": case "not":
+        segment = null;
+        symbol = null;
+        arg2 = 0;
+
+        switch (commandType) {
+            case C_ARITHMETIC:
                 // parse arithmetic commands
-                if (tokens.length > 1) // check if there is valid number of tokens
+                if (numTokens > 1) // check if there is valid number of tokens
                     throw new IllegalStateException("Syntax error (line " + currentLineNumber
-                            + "): unkown token \"" + tokens[1] + "\"");
+                            + "): unkown token \"" + token(1) + "\"");
 
-                commandType = Command.C_ARITHMETIC;
-                arg1 = command;
-                arg2 = 0;
+                arg1 = opcode.getName();
                 break;
 
-            case "push": case "pop":
+            case C_PUSH: case C_POP:
                 // parse push and pop commands
-                if (tokens.length < 3) // check if there is valid number of tokens
+                if (numTokens < 3) // check if there is valid number of tokens
                     throw new IllegalStateException("Syntax error (line " + currentLineNumber
                             + "): command missing arguments");
-                else if (tokens.length > 3)
+                else if (numTokens > 3)
                     throw new IllegalStateException("Syntax error (line " + currentLineNumber
-                            + "): unkown token \"" + tokens[3] + "\"");
+                            + "): unkown token \"" + token(3) + "\"");
+
+                segment = recognizeSegment(tokenStarts[1], tokenEnds[1]);
 
-                commandType = command.equals("push") ? Command.C_PUSH : Command.C_POP;
-                arg1 = tokens[1];   // segment
-                arg2 = Integer.parseInt(tokens[2]); // index
+                if (segment == null)
+                    throw new IllegalStateException("Syntax error (line " + currentLineNumber
+                            + "): unknown segment \"" + token(1) + "\"");
+
+                arg1 = segment.getName();
+                arg2 = parseNumber(2); // index
                 break;
-            
-            case "label": case "goto": case "if-goto":
+
+            case C_LABEL: case C_GOTO: case C_IF:
                 // parse label, goto, and if-goto commands
-                commandType = command.equals("label") ? Command.C_LABEL : 
-                        (command.equals("goto") ? Command.C_GOTO : Command.C_IF);
-                arg1 = tokens[1];   // label
-                arg2 = 0;           // ignore second arg
+                if (numTokens < 2)
+                    throw new IllegalStateException("Syntax error (line " + currentLineNumber
+                            + "): command missing arguments");
+
+                symbol = symbol(tokenStarts[1], tokenEnds[1]);
+                arg1 = symbol;  // label
                 break;
 
-            case "function": case "call":
+            case C_FUNCTION: case C_CALL:
                 // parse function and call commands
-                commandType = command.equals("function") ? Command.C_FUNCTION
-                        : Command.C_CALL;
-                arg1 = tokens[1];   // function name
-                arg2 = Integer.parseInt(tokens[2]); // num local variables or arguments
-                break;
-            
-            case "return":
-                // parse return command
-                commandType = Command.C_RETURN;
-                arg1 = null; // ignore 
-                arg2 = 0;    // ignore
+                if (numTokens < 3)
+                    throw new IllegalStateException("Syntax error (line " + currentLineNumber
+                            + "): command missing arguments");
+
+                symbol = symbol(tokenStarts[1], tokenEnds[1]);
+                arg1 = symbol;  // function name
+                arg2 = parseNumber(2); // num local variables or arguments
                 break;
-            
+
             default:
-                throw new IllegalStateException("Syntax error (line " + currentLineNumber
-                        + "): \"" + command + "\" is not a command");
+                // parse return command
+                arg1 = null; // ignore
         }
 
         advanceToNextLine();
     }
 
+    /**
+     * Parses the remaining commands of the file into the intermediate
+     * representation
+     * @return Module with one entry per function in the file
+     */
+    public VMModule parseModule() {
+        VMModule module = new VMModule(fileName);
+        VMFunction function = null;
+
+        while (hasMoreCommands()) {
+            advance();
+
+            if (commandType == Command.C_FUNCTION) {    // start a new function
+                function = new VMFunction(symbol, arg2);
+                module.addFunction(function);
+                continue;
+            }
+
+            if (function == null) { // commands before the first function
+                function = new VMFunction(null, 0);
+                module.addFunction(function);
+            }
+
+            function.add(opcode, segment, arg2, symbol);
+        }
+
+        return module;
+    }
+
     /**
      * Returns command type
      * @return Command type enum
@@ -128,40 +204,349 @@ public class Parser {
     }
 
     /**
-     * Closes the buffered reader
+     * Closes the input channel
      * @throws IOException
      */
     public void close() throws IOException {
-        reader.close();
+        channel.close();
     }
 
     /**
-     * Finds the next non-empty line in the input file
+     * Finds the next non-empty line in the input file, without comments and
+     * surrounding whitespace
      */
     private void advanceToNextLine() {
-        boolean done = false;
+        hasLine = false;
+
+        while (!hasLine) {
+            int end = position;
+
+            // find the end of the line, reading more input if needed
+            while (true) {
+                if (end == dataEnd) {
+                    int start = position;
+                    boolean filled = fill();
+                    end -= start - position;    // the line may have moved
+
+                    if (!filled)    // check if end of file
+                        break;
+
+                    continue;
+                }
 
-        while (!done) {
-            try {
-                currentLine = reader.readLine();
-            } catch (IOException e) {
-                throw new IllegalStateException("IO exception: " + e.getMessage());
+                if (buffer.get(end) == '\n')
+                    break;
+
+                end++;
             }
 
+            if (position == end && end == dataEnd)  // nothing left
+                return;
+
             currentLineNumber++;
+            lineStart = position;
+            lineEnd = end;
+            position = end < dataEnd ? end + 1 : end;
+
+            for (int i = lineStart; i + 1 < lineEnd; i++) { // ignore comments in current line
+                if (buffer.get(i) == '/' && buffer.get(i + 1) == '/') {
+                    lineEnd = i;
+                    break;
+                }
+            }
+
+            // remove whitespace
+            while (lineStart < lineEnd && isWhitespace(buffer.get(lineStart)))
+                lineStart++;
 
-            if (currentLine == null)    // check if end of file
+            while (lineEnd > lineStart && isWhitespace(buffer.get(lineEnd - 1)))
+                lineEnd--;
+
+            hasLine = lineStart < lineEnd; // check if non-empty
+        }
+    }
+
+    /**
+     * Moves the unscanned input to the front of the buffer and reads more
+     * input after it, growing the buffer if a line does not fit. Memory
+     * mapped files are never refilled since they are mapped whole.
+     * @return False if the end of the file was reached
+     */
+    private boolean fill() {
+        if (endOfFile)
+            return false;
+
+        int remaining = dataEnd - position;
+
+        if (remaining == buffer.capacity()) {   // line longer than the buffer
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.position(0).limit(dataEnd);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.position(position).limit(dataEnd);
+            buffer.compact();
+        }
+
+        position = 0;
+        dataEnd = remaining;
+
+        try {
+            int read = channel.read(buffer);
+
+            if (read < 0)
+                endOfFile = true;
+            else
+                dataEnd += read;
+        } catch (IOException e) {
+            throw new IllegalStateException("IO exception: " + e.getMessage());
+        }
+
+        return !endOfFile || dataEnd > remaining;
+    }
+
+    /**
+     * Splits the current line at whitespace, recording where the first few
+     * tokens start and end
+     */
+    private void tokenize() {
+        numTokens = 0;
+        int i = lineStart;
+
+        while (i < lineEnd) {
+            while (isWhitespace(buffer.get(i)))
+                i++;
+
+            int start = i;
+
+            while (i < lineEnd && !isWhitespace(buffer.get(i)))
+                i++;
+
+            if (numTokens < MAX_TOKENS) {
+                tokenStarts[numTokens] = start;
+                tokenEnds[numTokens] = i;
+            }
+
+            numTokens++;
+        }
+    }
+
+    /**
+     * Recognizes a command by its length and first characters, ignoring case
+     * @param start Start of the command token
+     * @param end End of the command token
+     * @return True if the token is a command
+     */
+    private boolean recognizeCommand(int start, int end) {
+        Opcode candidate = null;
+
+        switch (end - start) {
+            case 2:
+                switch (lowerCaseAt(start)) {
+                    case 'e': candidate = Opcode.EQ; break;
+                    case 'g': candidate = Opcode.GT; break;
+                    case 'l': candidate = Opcode.LT; break;
+                    case 'o': candidate = Opcode.OR; break;
+                }
+                break;
+
+            case 3:
+                switch (lowerCaseAt(start)) {
+                    case 'a': candidate = lowerCaseAt(start + 1) == 'd' ? Opcode.ADD : Opcode.AND; break;
+                    case 'n': candidate = lowerCaseAt(start + 1) == 'e' ? Opcode.NEG : Opcode.NOT; break;
+                    case 's': candidate = Opcode.SUB; break;
+                    case 'p': candidate = Opcode.POP; break;
+                }
+                break;
+
+            case 4:
+                switch (lowerCaseAt(start)) {
+                    case 'p': candidate = Opcode.PUSH; break;
+                    case 'g': candidate = Opcode.GOTO; break;
+                    case 'c': candidate = Opcode.CALL; break;
+                }
                 break;
 
-            int commentIndex = currentLine.indexOf("//");
+            case 5: candidate = Opcode.LABEL; break;
+            case 6: candidate = Opcode.RETURN; break;
+            case 7: candidate = Opcode.IF_GOTO; break;
+
+            case 8:
+                if (matches(start, end, "function", true)) {
+                    commandType = Command.C_FUNCTION;
+                    opcode = null;
+                    return true;
+                }
+                break;
+        }
+
+        if (candidate == null || !matches(start, end, candidate.getName(), true))
+            return false;
+
+        opcode = candidate;
+        commandType = candidate.getCommandType();
+        return true;
+    }
+
+    /**
+     * Recognizes a segment by its length and first characters
+     * @param start Start of the segment token
+     * @param end End of the segment token
+     * @return Segment, or null if the token is not a segment
+     */
+    private Segment recognizeSegment(int start, int end) {
+        Segment candidate = null;
+
+        switch (end - start) {
+            case 4:
+                if (buffer.get(start + 1) == 'e')
+                    candidate = Segment.TEMP;
+                else
+                    candidate = buffer.get(start + 2) == 'i' ? Segment.THIS : Segment.THAT;
+                break;
+
+            case 5: candidate = Segment.LOCAL; break;
+            case 6: candidate = Segment.STATIC; break;
+            case 7: candidate = Segment.POINTER; break;
+            case 8: candidate = buffer.get(start) == 'c' ? Segment.CONSTANT : Segment.ARGUMENT; break;
+        }
+
+        return candidate != null && matches(start, end, candidate.getName(), false) ? candidate : null;
+    }
+
+    /**
+     * Parses a token as a non-negative decimal number
+     * @param tokenIndex Index of the token in the line
+     * @return Value of the number
+     */
+    private int parseNumber(int tokenIndex) {
+        int value = 0;
+
+        for (int i = tokenStarts[tokenIndex]; i < tokenEnds[tokenIndex]; i++) {
+            int digit = buffer.get(i) - '0';
+
+            if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10)
+                throw new IllegalStateException("Syntax error (line " + currentLineNumber
+                        + "): invalid number \"" + token(tokenIndex) + "\"");
+
+            value = value * 10 + digit;
+        }
+
+        return value;
+    }
+
+    /**
+     * Returns the string for a label or function name, creating it only the
+     * first time the name is seen
+     * @param start Start of the name in the buffer
+     * @param end End of the name in the buffer
+     * @return Shared string for the name
+     */
+    private String symbol(int start, int end) {
+        int hash = 0;
+
+        for (int i = start; i < end; i++)
+            hash = 31 * hash + buffer.get(i);
 
-            if (commentIndex >= 0)  // ignore comments in current line
-                currentLine = currentLine.substring(0, commentIndex);
+        int mask = symbols.length - 1;
+        int slot = hash & mask;
 
-            currentLine = currentLine.trim(); // remove whitespace
+        // open addressing with linear probing
+        while (symbols[slot] != null) {
+            if (symbols[slot].hashCode() == hash && matches(start, end, symbols[slot], false))
+                return symbols[slot];
 
-            if (currentLine.length() > 0) // check if non-empty
-                done = true;
+            slot = (slot + 1) & mask;
         }
+
+        String name = new String(bytes(start, end), StandardCharsets.US_ASCII);
+        symbols[slot] = name;
+        numSymbols++;
+
+        if (numSymbols * 2 > symbols.length)    // keep the table at most half full
+            rehashSymbols();
+
+        return name;
+    }
+
+    /**
+     * Doubles the size of the symbol table
+     */
+    private void rehashSymbols() {
+        String[] oldSymbols = symbols;
+        symbols = new String[oldSymbols.length * 2];
+        int mask = symbols.length - 1;
+
+        for (String name : oldSymbols) {
+            if (name == null)
+                continue;
+
+            int slot = name.hashCode() & mask;
+
+            while (symbols[slot] != null)
+                slot = (slot + 1) & mask;
+
+            symbols[slot] = name;
+        }
+    }
+
+    /**
+     * Compares the buffer contents with a keyword
+     * @param start Start of the token
+     * @param end End of the token
+     * @param keyword Keyword to compare with
+     * @param ignoreCase True to ignore the case of letters in the token
+     * @return True if the token equals the keyword
+     */
+    private boolean matches(int start, int end, String keyword, boolean ignoreCase) {
+        if (end - start != keyword.length())
+            return false;
+
+        for (int i = start; i < end; i++) {
+            int c = ignoreCase ? lowerCaseAt(i) : buffer.get(i);
+
+            if (c != keyword.charAt(i - start))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the byte at an index, converted to lower case if it is a letter
+     * @param i Index in the buffer
+     * @return Lower case character
+     */
+    private int lowerCaseAt(int i) {
+        int c = buffer.get(i);
+        return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+    }
+
+    /**
+     * Returns a token of the current line as a string, for error messages
+     * @param tokenIndex Index of the token in the line
+     * @return Token text
+     */
+    private String token(int tokenIndex) {
+        return new String(bytes(tokenStarts[tokenIndex], tokenEnds[tokenIndex]), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Copies a range of the buffer
+     * @param start Start of the range
+     * @param end End of the range
+     * @return Copied bytes
+     */
+    private byte[] bytes(int start, int end) {
+        byte[] bytes = new byte[end - start];
+
+        for (int i = start; i < end; i++)
+            bytes[i - start] = buffer.get(i);
+
+        return bytes;
+    }
+
+    private static boolean isWhitespace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == 0x0B;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,238 @@
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writer that buffers a window of HACK instructions and removes redundant
+ * ones before passing them on to the underlying writer
+ */
+public class PeepholeOptimizer extends FilterWriter {
+    private static final int WINDOW_SIZE = 32;
+
+    private static final String PUSH_POP = "push-pop";
+    private static final String AT_RELOAD = "at-reload";
+    private static final String SP_RELOAD = "sp-reload";
+    private static final String STORE_LOAD = "store-load";
+    private static final String DEAD_D = "dead-d";
+
+    private final StringBuilder line;
+    private final List<String> window;
+    private final Map<String, Integer> hits;
+
+    public PeepholeOptimizer(Writer out) {
+        super(out);
+        line = new StringBuilder();
+        window = new ArrayList<>();
+        hits = new LinkedHashMap<>();
+
+        for (String rule : new String[] { PUSH_POP, AT_RELOAD, SP_RELOAD, STORE_LOAD, DEAD_D })
+            hits.put(rule, 0);
+    }
+
+    /**
+     * Returns how many instructions each rule removed
+     * @return Map from rule name to number of removed instructions
+     */
+    public Map<String, Integer> getHits() {
+        return hits;
+    }
+
+    /**
+     * Adds the hits of another optimizer, e.g. one that optimized a file
+     * translated on another thread
+     * @param other Optimizer whose hits are added
+     */
+    public void addHits(PeepholeOptimizer other) {
+        for (Map.Entry<String, Integer> rule : other.hits.entrySet())
+            hits.put(rule.getKey(), hits.get(rule.getKey()) + rule.getValue());
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (c != '\n') {
+            line.append((char) c);
+            return;
+        }
+
+        window.add(line.toString());
+        line.setLength(0);
+
+        while (applyRules()) // rules may enable each other
+            ;
+
+        if (window.size() > WINDOW_SIZE) {
+            out.write(window.remove(0));
+            out.write('\n');
+        }
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            write(cbuf[i]);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        for (int i = off; i < off + len; i++)
+            write(str.charAt(i));
+    }
+
+    /**
+     * Writes out the buffered instructions and flushes the underlying writer
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+        for (String instruction : window) {
+            out.write(instruction);
+            out.write('\n');
+        }
+
+        window.clear();
+        out.flush();
+    }
+
+    /**
+     * Writes out the buffered instructions and closes the underlying writer
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        out.close();
+    }
+
+    /**
+     * Tries each rule on the end of the window
+     * @return True if a rule removed instructions
+     */
+    private boolean applyRules() {
+        int last = window.size() - 1;
+        String instruction = window.get(last);
+
+        // M=M+1 immediately undone by M=M-1, e.g. a push followed by a pop
+        if (instruction.equals("M=M-1") && last >= 1 && window.get(last - 1).equals("M=M+1"))
+            return remove(PUSH_POP, last - 1, 2);
+
+        // @X when A still holds X
+        if (instruction.startsWith("@")) {
+            int i = last - 1;
+
+            while (i >= 0 && !window.get(i).startsWith("(") && !writesA(window.get(i))
+                    && !isJump(window.get(i)))
+                i--;
+
+            if (i >= 0 && window.get(i).equals(instruction))
+                return remove(AT_RELOAD, last, 1);
+        }
+
+        // @SP / A=M when A still holds the stack pointer's value
+        if (instruction.equals("A=M") && last >= 1 && window.get(last - 1).equals("@SP")) {
+            int i = last - 2;
+
+            while (i >= 0 && !window.get(i).startsWith("(") && !writesA(window.get(i))
+                    && !isJump(window.get(i)))
+                i--;
+
+            if (i >= 1 && window.get(i).equals("A=M") && window.get(i - 1).equals("@SP"))
+                return remove(SP_RELOAD, last - 1, 2);
+        }
+
+        // D=M right after M=D
+        if (instruction.equals("D=M") && last >= 1 && window.get(last - 1).equals("M=D"))
+            return remove(STORE_LOAD, last, 1);
+
+        // D= overwritten before it is read
+        if (writesD(instruction) && !readsD(instruction)) {
+            int i = last - 1;
+
+            while (i >= 0 && !window.get(i).startsWith("(") && !isJump(window.get(i))
+                    && !readsD(window.get(i)) && !writesD(window.get(i)))
+                i--;
+
+            if (i >= 0 && !isJump(window.get(i)) && destination(window.get(i)).equals("D"))
+                return remove(DEAD_D, i, 1);
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes instructions from the window and counts the hit
+     * @param rule Name of the rule that matched
+     * @param index Index of the first instruction to remove
+     * @param count Number of instructions to remove
+     * @return Always true
+     */
+    private boolean remove(String rule, int index, int count) {
+        window.subList(index, index + count).clear();
+        hits.put(rule, hits.get(rule) + count);
+        return true;
+    }
+
+    /**
+     * Returns the destination part of a C-instruction
+     * @param instruction Instruction text
+     * @return Destination registers, empty if none
+     */
+    private static String destination(String instruction) {
+        if (instruction.startsWith("@") || instruction.startsWith("("))
+            return "";
+
+        int equalsIndex = instruction.indexOf('=');
+        return equalsIndex >= 0 ? instruction.substring(0, equalsIndex) : "";
+    }
+
+    /**
+     * Returns the computation part of a C-instruction
+     * @param instruction Instruction text
+     * @return Computation
+     */
+    private static String computation(String instruction) {
+        int start = instruction.indexOf('=') + 1;
+        int end = instruction.indexOf(';');
+        return instruction.substring(start, end >= 0 ? end : instruction.length());
+    }
+
+    /**
+     * Checks if an instruction loads A
+     * @param instruction Instruction text
+     * @return True for A-instructions and C-instructions with A in the destination
+     */
+    private static boolean writesA(String instruction) {
+        return instruction.startsWith("@") || destination(instruction).indexOf('A') >= 0;
+    }
+
+    /**
+     * Checks if an instruction stores to D
+     * @param instruction Instruction text
+     * @return True if D is in the destination
+     */
+    private static boolean writesD(String instruction) {
+        return destination(instruction).indexOf('D') >= 0;
+    }
+
+    /**
+     * Checks if an instruction reads D
+     * @param instruction Instruction text
+     * @return True if the computation of a C-instruction uses D
+     */
+    private static boolean readsD(String instruction) {
+        return !instruction.startsWith("@") && !instruction.startsWith("(")
+                && computation(instruction).indexOf('D') >= 0;
+    }
+
+    /**
+     * Checks if an instruction may jump
+     * @param instruction Instruction text
+     * @return True if the instruction has a jump part
+     */
+    private static boolean isJump(String instruction) {
+        return instruction.indexOf(';') >= 0;
+    }
+}
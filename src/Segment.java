@@ -0,0 +1,39 @@
+/*
+ * Enum of memory segments for push and pop commands
+ */
+public enum Segment {
+    CONSTANT("constant"),
+    LOCAL("local"),
+    ARGUMENT("argument"),
+    THIS("this"),
+    THAT("that"),
+    POINTER("pointer"),
+    TEMP("temp"),
+    STATIC("static"),
+    STACK("stack");     // SP-relative slots of inlined functions, not part of the VM language
+
+    private static final Segment[] VALUES = values();
+
+    private final String name;
+
+    private Segment(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Returns the segment with the given ordinal
+     * @param ordinal Ordinal of the segment
+     * @return Segment
+     */
+    public static Segment fromOrdinal(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns the VM name of the segment
+     * @return Segment name
+     */
+    public String getName() {
+        return name;
+    }
+}
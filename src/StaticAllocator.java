@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Assigns RAM addresses to the static variables of a whole program instead
+ * of leaving them to the assembler. The statics of each file get a block of
+ * consecutive addresses from 16, most used first, and only statics that are
+ * used get an address.
+ */
+public class StaticAllocator {
+    private static final int FIRST_ADDRESS = 16;
+    private static final int LAST_ADDRESS = 255;    // the stack starts at 256
+
+    private final Map<String, int[]> addresses;
+    private int numStatics;
+
+    /**
+     * Creates an allocator without any statics. Modules are added in output
+     * order.
+     */
+    public StaticAllocator() {
+        addresses = new HashMap<>();
+    }
+
+    /**
+     * Allocates the statics of a module after those already allocated
+     * @param module Module that is written after the previous ones
+     * @throws IllegalStateException if the statics do not fit below the stack
+     */
+    public void add(VMModule module) {
+        addresses.put(module.getFileName(), allocate(module));
+    }
+
+    /**
+     * Returns the addresses of the statics of a file
+     * @param fileName Name of the file
+     * @return Address of each static index, -1 for indices that are not
+     * used, or null if the file is not part of the program
+     */
+    public int[] getAddresses(String fileName) {
+        return addresses.get(fileName);
+    }
+
+    /**
+     * Returns the number of statics that were given an address
+     * @return Number of allocated statics
+     */
+    public int getNumStatics() {
+        return numStatics;
+    }
+
+    /**
+     * Counts the uses of each static of a module and assigns the next
+     * addresses to them, most used first
+     * @param module Module to allocate the statics of
+     * @return Address of each static index, -1 for indices that are not used
+     */
+    private int[] allocate(VMModule module) {
+        int[] uses = new int[0];
+
+        for (VMFunction function : module.getFunctions()) {
+            for (int i = 0; i < function.size(); i++) {
+                if (function.getSegment(i) != Segment.STATIC)
+                    continue;
+
+                int index = function.getIndex(i);
+
+                if (index >= uses.length)
+                    uses = Arrays.copyOf(uses, Math.max(index + 1, uses.length * 2));
+
+                uses[index]++;
+            }
+        }
+
+        List<Integer> used = new ArrayList<>();
+
+        for (int index = 0; index < uses.length; index++) {
+            if (uses[index] > 0)
+                used.add(index);
+        }
+
+        final int[] counts = uses;
+        used.sort((a, b) -> counts[a] != counts[b] ? counts[b] - counts[a] : a - b);
+
+        int[] moduleAddresses = new int[uses.length];
+        Arrays.fill(moduleAddresses, -1);
+
+        for (int index : used) {
+            int address = FIRST_ADDRESS + numStatics;
+
+            if (address > LAST_ADDRESS)
+                throw new IllegalStateException("Static " + index + " of " + module.getFileName()
+                        + " does not fit in RAM " + FIRST_ADDRESS + "-" + LAST_ADDRESS + "!");
+
+            moduleAddresses[index] = address;
+            numStatics++;
+        }
+
+        return moduleAddresses;
+    }
+}
@@ -0,0 +1,420 @@
+import java.util.List;
+
+/*
+ * Code generation options for VM translation
+ */
+public class TranslatorOptions {
+    private boolean sharedRuntime;
+    private boolean sharedComparisons;
+    private boolean peephole;
+    private boolean topOfStackCaching;
+    private boolean constantFolding;
+    private int maxUnrolledLocals = 3;
+    private boolean batchedPushes;
+    private boolean deadFunctionElimination;
+    private int maxInlineSize;
+    private boolean tailCalls;
+    private boolean reducedFrames;
+    private boolean binaryOutput;
+    private boolean staticAllocation;
+    private int jobs = 1;
+
+    /**
+     * Parses the translator options of a command line. An --optimize goal
+     * is applied before every other option, so options given explicitly
+     * take priority over the goal wherever they appear.
+     * @param args Command line arguments
+     * @param remaining List that receives the arguments that are not
+     * translator options, in order
+     * @return Parsed options
+     * @throws IllegalArgumentException if an option is missing its value or
+     * the value is invalid
+     */
+    public static TranslatorOptions parse(String[] args, List<String> remaining) {
+        TranslatorOptions options = new TranslatorOptions();
+
+        for (String arg : args) {   // the last goal wins
+            if (arg.equals("--optimize=size") || arg.equals("--optimize=speed"))
+                options.setOptimizationGoal(arg.substring(arg.indexOf('=') + 1));
+        }
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            switch (arg) {
+                case "--shared-runtime":
+                    options.setSharedRuntime(true);
+                    break;
+
+                case "--shared-compare":
+                    options.setSharedComparisons(true);
+                    break;
+
+                case "--peephole":
+                    options.setPeephole(true);
+                    break;
+
+                case "--cache-tos":
+                    options.setTopOfStackCaching(true);
+                    break;
+
+                case "--batch-pushes":
+                    options.setBatchedPushes(true);
+                    break;
+
+                case "--fold-constants":
+                    options.setConstantFolding(true);
+                    break;
+
+                case "--tail-calls":
+                    options.setTailCalls(true);
+                    break;
+
+                case "--allocate-statics":
+                    options.setStaticAllocation(true);
+                    break;
+
+                case "--binary":
+                    options.setBinaryOutput(true);
+                    break;
+
+                case "--reduce-frames":
+                    options.setReducedFrames(true);
+                    break;
+
+                case "--remove-dead-functions":
+                    options.setDeadFunctionElimination(true);
+                    break;
+
+                case "--jobs":
+                    try {
+                        options.setJobs(Integer.parseInt(args[++i]));
+                    } catch (RuntimeException e) {  // missing, not a number or less than 1
+                        throw new IllegalArgumentException("Option --jobs expects a positive number!");
+                    }
+                    break;
+
+                case "--inline":
+                    try {
+                        options.setMaxInlineSize(Integer.parseInt(args[++i]));
+                    } catch (RuntimeException e) {  // missing, not a number or negative
+                        throw new IllegalArgumentException("Option --inline expects a number that is not negative!");
+                    }
+                    break;
+
+                case "--unroll-locals":
+                    try {
+                        options.setMaxUnrolledLocals(Integer.parseInt(args[++i]));
+                    } catch (RuntimeException e) {  // missing, not a number or negative
+                        throw new IllegalArgumentException("Option --unroll-locals expects a number that is not negative!");
+                    }
+                    break;
+
+                case "--optimize=size": case "--optimize=speed":
+                    break;  // already applied
+
+                default:    // left to the caller, e.g. a file name
+                    remaining.add(arg);
+            }
+        }
+
+        return options;
+    }
+
+    /**
+     * Returns whether call and return go through the shared runtime routines
+     * @return True if the shared runtime is used
+     */
+    public boolean isSharedRuntime() {
+        return sharedRuntime;
+    }
+
+    /**
+     * Sets whether call and return jump to one shared $$CALL and $$RETURN
+     * routine instead of inlining the frame handling at every site
+     * @param sharedRuntime True to use the shared runtime
+     */
+    public void setSharedRuntime(boolean sharedRuntime) {
+        this.sharedRuntime = sharedRuntime;
+    }
+
+    /**
+     * Returns whether eq, gt and lt jump to shared comparison routines
+     * @return True if the shared comparison routines are used
+     */
+    public boolean isSharedComparisons() {
+        return sharedComparisons;
+    }
+
+    /**
+     * Sets whether eq, gt and lt jump to one shared routine per jump
+     * mnemonic instead of inlining the comparison at every site
+     * @param sharedComparisons True to use the shared comparison routines
+     */
+    public void setSharedComparisons(boolean sharedComparisons) {
+        this.sharedComparisons = sharedComparisons;
+    }
+
+    /**
+     * Returns whether the output goes through the peephole optimizer
+     * @return True if the peephole optimizer is enabled
+     */
+    public boolean isPeephole() {
+        return peephole;
+    }
+
+    /**
+     * Sets whether the output goes through the peephole optimizer
+     * @param peephole True to enable the peephole optimizer
+     */
+    public void setPeephole(boolean peephole) {
+        this.peephole = peephole;
+    }
+
+    /**
+     * Returns whether the top of the stack is cached in D
+     * @return True if top-of-stack caching is enabled
+     */
+    public boolean isTopOfStackCaching() {
+        return topOfStackCaching;
+    }
+
+    /**
+     * Sets whether a pushed value stays in D until it is consumed, instead of
+     * being stored to RAM and reloaded by the next command. The value is
+     * written back before labels, jumps, calls and returns.
+     * @param topOfStackCaching True to cache the top of the stack in D
+     */
+    public void setTopOfStackCaching(boolean topOfStackCaching) {
+        this.topOfStackCaching = topOfStackCaching;
+    }
+
+    /**
+     * Returns whether arithmetic on constants is evaluated at translation time
+     * @return True if constant folding is enabled
+     */
+    public boolean isConstantFolding() {
+        return constantFolding;
+    }
+
+    /**
+     * Sets whether arithmetic on constants is evaluated at translation time
+     * @param constantFolding True to enable constant folding
+     */
+    public void setConstantFolding(boolean constantFolding) {
+        this.constantFolding = constantFolding;
+    }
+
+    /**
+     * Returns the largest number of locals initialized with straight-line
+     * code instead of a loop
+     * @return Maximum number of unrolled locals
+     */
+    public int getMaxUnrolledLocals() {
+        return maxUnrolledLocals;
+    }
+
+    /**
+     * Sets the largest number of locals a function header initializes with
+     * straight-line code. Functions with more locals use a loop, which is
+     * smaller for more than 2 locals but slower.
+     * @param maxUnrolledLocals Maximum number of unrolled locals, at least 0
+     */
+    public void setMaxUnrolledLocals(int maxUnrolledLocals) {
+        if (maxUnrolledLocals < 0)
+            throw new IllegalArgumentException("Number of unrolled locals should not be negative!");
+
+        this.maxUnrolledLocals = maxUnrolledLocals;
+    }
+
+    /**
+     * Returns whether runs of pushes adjust SP once
+     * @return True if pushes are batched
+     */
+    public boolean isBatchedPushes() {
+        return batchedPushes;
+    }
+
+    /**
+     * Sets whether runs of consecutive pushes store their values at SP,
+     * SP+1, ... and adjust SP once, where that takes fewer instructions. Has
+     * no effect when the top of the stack is cached in D.
+     * @param batchedPushes True to batch pushes
+     */
+    public void setBatchedPushes(boolean batchedPushes) {
+        this.batchedPushes = batchedPushes;
+    }
+
+    /**
+     * Returns whether functions that cannot be reached from Sys.init are
+     * left out of a directory translation
+     * @return True if dead function elimination is enabled
+     */
+    public boolean isDeadFunctionElimination() {
+        return deadFunctionElimination;
+    }
+
+    /**
+     * Sets whether a directory translation leaves out the functions that no
+     * chain of calls from Sys.init reaches. Has no effect on single files or
+     * on programs without Sys.init.
+     * @param deadFunctionElimination True to remove dead functions
+     */
+    public void setDeadFunctionElimination(boolean deadFunctionElimination) {
+        this.deadFunctionElimination = deadFunctionElimination;
+    }
+
+    /**
+     * Returns the largest number of commands in a function whose calls are
+     * replaced with its body
+     * @return Maximum size of an inlined function, 0 if inlining is disabled
+     */
+    public int getMaxInlineSize() {
+        return maxInlineSize;
+    }
+
+    /**
+     * Sets the largest function a directory translation inlines into its
+     * callers. Only functions that call nothing and leave THIS and THAT
+     * alone are inlined.
+     * @param maxInlineSize Maximum number of commands, 0 to disable inlining
+     */
+    public void setMaxInlineSize(int maxInlineSize) {
+        if (maxInlineSize < 0)
+            throw new IllegalArgumentException("Inline size should not be negative!");
+
+        this.maxInlineSize = maxInlineSize;
+    }
+
+    /**
+     * Returns whether a call followed by return reuses the current frame
+     * @return True if tail calls are optimized
+     */
+    public boolean isTailCalls() {
+        return tailCalls;
+    }
+
+    /**
+     * Sets whether call immediately followed by return jumps to the shared
+     * $$TAILCALL routine, which moves the new arguments over the current
+     * ones and keeps the caller's frame, so tail recursion runs in constant
+     * stack space. The routine is only written if a tail call is found.
+     * @param tailCalls True to optimize tail calls
+     */
+    public void setTailCalls(boolean tailCalls) {
+        this.tailCalls = tailCalls;
+    }
+
+    /**
+     * Returns whether functions that never pop pointer are called with a
+     * reduced frame
+     * @return True if reduced frames are enabled
+     */
+    public boolean isReducedFrames() {
+        return reducedFrames;
+    }
+
+    /**
+     * Sets whether a directory translation calls the functions that never
+     * pop pointer with a frame that does not save and restore THIS and
+     * THAT. Calls to functions outside of the program keep the full frame.
+     * @param reducedFrames True to enable reduced frames
+     */
+    public void setReducedFrames(boolean reducedFrames) {
+        this.reducedFrames = reducedFrames;
+    }
+
+    /**
+     * Returns whether the translator writes machine code instead of
+     * assembly code
+     * @return True if a .hack file is written
+     */
+    public boolean isBinaryOutput() {
+        return binaryOutput;
+    }
+
+    /**
+     * Sets whether the translator assembles its output itself and writes a
+     * .hack file instead of an .asm file
+     * @param binaryOutput True to write machine code
+     */
+    public void setBinaryOutput(boolean binaryOutput) {
+        this.binaryOutput = binaryOutput;
+    }
+
+    /**
+     * Returns whether the translator assigns the addresses of statics
+     * @return True if statics are allocated by the translator
+     */
+    public boolean isStaticAllocation() {
+        return staticAllocation;
+    }
+
+    /**
+     * Sets whether the translator assigns the statics of each file to
+     * consecutive addresses in RAM 16-255, most used first, and writes
+     * numeric addresses instead of leaving the symbols to the assembler.
+     * Statics that do not fit are an error instead of overwriting the stack.
+     * @param staticAllocation True to allocate statics in the translator
+     */
+    public void setStaticAllocation(boolean staticAllocation) {
+        this.staticAllocation = staticAllocation;
+    }
+
+    /**
+     * Returns the number of files translated in parallel
+     * @return Number of threads
+     */
+    public int getJobs() {
+        return jobs;
+    }
+
+    /**
+     * Sets the number of files of a directory translated in parallel. The
+     * output does not depend on it.
+     * @param jobs Number of threads, at least 1
+     */
+    public void setJobs(int jobs) {
+        if (jobs < 1)
+            throw new IllegalArgumentException("Number of jobs should be at least 1!");
+
+        this.jobs = jobs;
+    }
+
+    /**
+     * Selects the code generation tradeoff. "size" shares the call, return
+     * and comparison code to minimize ROM, "speed" inlines it and caches
+     * the top of the stack in D and inlines small functions to minimize
+     * cycle count. The goal overwrites every option it covers, so it must be
+     * selected before the options that should take priority over it.
+     * @param goal Either "size" or "speed"
+     */
+    public void setOptimizationGoal(String goal) {
+        switch (goal) {
+            case "size":
+                sharedRuntime = true;
+                sharedComparisons = true;
+                peephole = true;
+                constantFolding = true;
+                maxUnrolledLocals = 2;
+                deadFunctionElimination = true;
+                break;
+
+            case "speed":
+                sharedRuntime = false;
+                sharedComparisons = false;
+                peephole = true;
+                topOfStackCaching = true;
+                constantFolding = true;
+                maxUnrolledLocals = 16;
+                deadFunctionElimination = true;
+                maxInlineSize = 16;
+                tailCalls = true;
+                reducedFrames = true;
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown optimization goal \"" + goal + "\"!");
+        }
+    }
+}
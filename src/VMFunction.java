@@ -0,0 +1,177 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Intermediate representation of the commands of one VM function, stored as
+ * parallel arrays of opcode, segment, index and label id records
+ */
+public class VMFunction {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final byte NO_SEGMENT = -1;
+    private static final int NO_LABEL = -1;
+
+    private final String name;
+    private final int numLocals;
+
+    private byte[] opcodes;
+    private byte[] segments;
+    private int[] indices;
+    private int[] labelIds;
+    private int size;
+
+    private final List<String> labels;
+    private final Map<String, Integer> labelIdsByName;
+
+    /**
+     * Creates an empty function
+     * @param name Function name, or null for commands outside of a function
+     * @param numLocals Number of local variables
+     */
+    public VMFunction(String name, int numLocals) {
+        this.name = name;
+        this.numLocals = numLocals;
+
+        opcodes = new byte[INITIAL_CAPACITY];
+        segments = new byte[INITIAL_CAPACITY];
+        indices = new int[INITIAL_CAPACITY];
+        labelIds = new int[INITIAL_CAPACITY];
+
+        labels = new ArrayList<>();
+        labelIdsByName = new HashMap<>();
+    }
+
+    /**
+     * Appends a command
+     * @param opcode Opcode of the command
+     * @param segment Segment for push and pop, null otherwise
+     * @param index Segment index for push and pop, number of arguments for call
+     * @param label Label for label, goto and if-goto, function name for call,
+     * null otherwise
+     */
+    public void add(Opcode opcode, Segment segment, int index, String label) {
+        if (size == opcodes.length) {   // grow the arrays
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            indices = Arrays.copyOf(indices, capacity);
+            labelIds = Arrays.copyOf(labelIds, capacity);
+        }
+
+        opcodes[size] = (byte) opcode.ordinal();
+        segments[size] = segment == null ? NO_SEGMENT : (byte) segment.ordinal();
+        indices[size] = index;
+        labelIds[size] = label == null ? NO_LABEL : labelId(label);
+        size++;
+    }
+
+    /**
+     * Removes the last commands
+     * @param count Number of commands to remove
+     */
+    public void removeLast(int count) {
+        if (count > size)
+            throw new IllegalArgumentException("Cannot remove more commands than the function has!");
+
+        size -= count;
+    }
+
+    /**
+     * Returns the function name
+     * @return Function name, or null for commands outside of a function
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the number of local variables
+     * @return Number of local variables
+     */
+    public int getNumLocals() {
+        return numLocals;
+    }
+
+    /**
+     * Returns the number of commands
+     * @return Number of commands
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the opcode of a command
+     * @param i Command index
+     * @return Opcode
+     */
+    public Opcode getOpcode(int i) {
+        return Opcode.fromOrdinal(opcodes[i]);
+    }
+
+    /**
+     * Returns the segment of a push or pop command
+     * @param i Command index
+     * @return Segment, or null if the command has none
+     */
+    public Segment getSegment(int i) {
+        return segments[i] == NO_SEGMENT ? null : Segment.fromOrdinal(segments[i]);
+    }
+
+    /**
+     * Returns the segment index of a push or pop command, or the number of
+     * arguments of a call command
+     * @param i Command index
+     * @return Index
+     */
+    public int getIndex(int i) {
+        return indices[i];
+    }
+
+    /**
+     * Returns the label id of a command. Ids are dense and unique per label
+     * name within the function.
+     * @param i Command index
+     * @return Label id, or -1 if the command has no label
+     */
+    public int getLabelId(int i) {
+        return labelIds[i];
+    }
+
+    /**
+     * Returns the label of a label, goto or if-goto command, or the function
+     * name of a call command
+     * @param i Command index
+     * @return Label, or null if the command has none
+     */
+    public String getLabel(int i) {
+        return labelIds[i] == NO_LABEL ? null : labels.get(labelIds[i]);
+    }
+
+    /**
+     * Returns the number of distinct labels in the function
+     * @return Number of label ids
+     */
+    public int getLabelCount() {
+        return labels.size();
+    }
+
+    /**
+     * Returns the id for a label, assigning a new one if needed
+     * @param label Label name
+     * @return Label id
+     */
+    private int labelId(String label) {
+        Integer id = labelIdsByName.get(label);
+
+        if (id == null) {
+            id = labels.size();
+            labels.add(label);
+            labelIdsByName.put(label, id);
+        }
+
+        return id;
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Intermediate representation of one VM file as a list of functions
+ */
+public class VMModule {
+    private final String fileName;
+    private final List<VMFunction> functions;
+
+    /**
+     * Creates an empty module
+     * @param fileName Name of the VM file, including the extension
+     */
+    public VMModule(String fileName) {
+        this.fileName = fileName;
+        functions = new ArrayList<>();
+    }
+
+    /**
+     * Appends a function
+     * @param function Function to append
+     */
+    public void addFunction(VMFunction function) {
+        functions.add(function);
+    }
+
+    /**
+     * Returns the name of the VM file
+     * @return File name, including the extension
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the functions in file order. Commands before the first function
+     * command are kept in a function with a null name.
+     * @return List of functions
+     */
+    public List<VMFunction> getFunctions() {
+        return functions;
+    }
+}
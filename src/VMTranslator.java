@@ -1,16 +1,63 @@
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class VMTranslator {
     private CodeWriter codeWriter;
+    private TranslatorOptions options;
+    private final AtomicInteger numFoldedCommands = new AtomicInteger();
+    private int numDeadFunctions, numDeadCommands;
+    private int numInlinedCalls;
+    private Set<String> reducedFrameFunctions = new HashSet<>();
+    private StaticAllocator staticAllocator;
+
+    /*
+     * Step of a directory translation that runs for one file
+     */
+    private interface FileTask {
+        void run(int i) throws IOException;
+    }
 
     public static void main(String[] args) {
-        if (args.length != 1) { // check if there is a valid number of arguments
+        List<String> arguments = new ArrayList<>();
+        TranslatorOptions options;
+        String filenameOrDirectory = null;
+
+        try {
+            options = TranslatorOptions.parse(args, arguments);
+        } catch (IllegalArgumentException e) {  // invalid option value
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        for (String arg : arguments) {
+            if (arg.startsWith("--")) { // check if option is known
+                System.out.println("Unknown option \"" + arg + "\"!");
+                return;
+            } else if (filenameOrDirectory != null) {
+                System.out.println("Command accepts only one argument (filename or directory)!");
+                return;
+            }
+
+            filenameOrDirectory = arg;
+        }
+
+        if (filenameOrDirectory == null) { // check if there is a valid number of arguments
             System.out.println("Command accepts only one argument (filename or directory)!");
             return;
         }
 
-        String filenameOrDirectory = args[0];
         File file = new File(filenameOrDirectory);
 
         if (!file.exists()) {   // check if the file exists
@@ -29,10 +76,10 @@ public class VMTranslator {
         if (file.isFile())  // remove .vm extension if it is a file
             outputFilename = outputFilename.substring(0, outputFilename.lastIndexOf(".vm"));
 
-        outputFilename += ".asm";
+        outputFilename += options.isBinaryOutput() ? ".hack" : ".asm";
 
         File outputFile = new File(file.isDirectory() ? file : file.getParentFile(), outputFilename);
-        VMTranslator translator = new VMTranslator(outputFile);
+        VMTranslator translator = new VMTranslator(outputFile, options);
 
         if (file.isDirectory()) {
             translator.translateFilesInDirectory(file);
@@ -43,6 +90,7 @@ public class VMTranslator {
         translator.close();
 
         System.out.println("Finished translating file(s)");
+        translator.printStatistics();
     }
 
     /**
@@ -50,8 +98,24 @@ public class VMTranslator {
      * @param outputFile File to be outputted to
      */
     public VMTranslator(File outputFile) {
-        codeWriter = new CodeWriter(outputFile);
+        this(outputFile, new TranslatorOptions());
+    }
+
+    /**
+     * Initializes the code writer with the given options and writes the
+     * init code
+     * @param outputFile File to be outputted to
+     * @param options Code generation options
+     */
+    public VMTranslator(File outputFile, TranslatorOptions options) {
+        this.options = options;
+        codeWriter = new CodeWriter(outputFile, options);
         codeWriter.writeInit();
+
+        if (options.isStaticAllocation()) { // shared by every file written to the output
+            staticAllocator = new StaticAllocator();
+            codeWriter.setStaticAllocator(staticAllocator);
+        }
     }
 
     /**
@@ -59,59 +123,235 @@ public class VMTranslator {
      * @param file File to be translated
      */
     public void translateFile(File file) {
-        Parser parser = new Parser(file);
+        VMModule module = parseFile(file);
 
-        // set the new file name in the code writer
-        codeWriter.setFileName(file.getName());
-
-        while (parser.hasMoreCommands()) {
-            parser.advance();
-
-            // get the command type and arguments
-            Command commandType = parser.commandType();
-            String arg1 = parser.arg1();
-            int arg2 = parser.arg2();
-
-            switch (commandType) {
-                case C_ARITHMETIC:
-                    codeWriter.writeArithmetic(arg1);
-                    break;
-                case C_PUSH: case C_POP:
-                    codeWriter.writePushPop(commandType, arg1, arg2);
-                    break;
-                case C_LABEL:
-                    codeWriter.writeLabel(arg1);
-                    break;
-                case C_GOTO:
-                    codeWriter.writeGoto(arg1);
-                    break;
-                case C_IF:
-                    codeWriter.writeIf(arg1);
-                    break;
-                case C_FUNCTION:
-                    codeWriter.writeFunction(arg1, arg2);
-                    break;
-                case C_RETURN:
-                    codeWriter.writeReturn();
-                    break;
-                case C_CALL:
-                    codeWriter.writeCall(arg1, arg2);
-            }
-        }
+        if (staticAllocator != null)    // after the statics of earlier files
+            staticAllocator.add(module);
+
+        codeWriter.writeModule(module);
     }
 
     /**
      * Iterates over a directory non-recursively and translates each .vm file.
-     * The output is still in one assembly output file. 
+     * The output is still in one assembly output file. All files are parsed
+     * on up to options.getJobs() threads before the whole-program passes run,
+     * then translated into separate buffers on the same threads and appended
+     * in file name order, so the output does not depend on the number of
+     * threads.
      * @param directory File that represents the directory
      */
     public void translateFilesInDirectory(File directory) {
+        List<File> files = new ArrayList<>();
+
         for (File file : directory.listFiles()) {
             if (file.isFile() && file.getName().endsWith(".vm"))
-                translateFile(file);
+                files.add(file);
+        }
+
+        File[] sortedFiles = files.toArray(new File[0]);
+        Arrays.sort(sortedFiles);
+
+        VMModule[] modules = new VMModule[sortedFiles.length];
+        AsciiWriter[] buffers = new AsciiWriter[sortedFiles.length];
+        CodeWriter[] writers = new CodeWriter[sortedFiles.length];
+        ExecutorService executor = Executors.newFixedThreadPool(options.getJobs());
+
+        try {
+            runForEachFile(executor, sortedFiles, i -> modules[i] = parseFile(sortedFiles[i]));
+            optimizeProgram(Arrays.asList(modules));
+
+            if (staticAllocator != null) {  // after the passes that remove statics
+                for (VMModule module : modules)
+                    staticAllocator.add(module);
+            }
+
+            runForEachFile(executor, sortedFiles, i -> {
+                writers[i] = new CodeWriter(buffers[i] = new AsciiWriter(), options);
+                writers[i].setReducedFrameFunctions(reducedFrameFunctions);
+                writers[i].setStaticAllocator(staticAllocator);
+                writers[i].writeModule(modules[i]);
+                writers[i].close();
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (int i = 0; i < sortedFiles.length; i++) {
+            codeWriter.writeCode(buffers[i]);
+            codeWriter.addUsedRoutines(writers[i]);
+
+            if (codeWriter.getPeepholeOptimizer() != null)
+                codeWriter.getPeepholeOptimizer().addHits(writers[i].getPeepholeOptimizer());
+        }
+    }
+
+    /**
+     * Prints how many commands constant folding and dead function
+     * elimination removed, how many calls were inlined, how many statics
+     * were allocated and how many instructions each peephole rule removed,
+     * if they are enabled
+     */
+    public void printStatistics() {
+        if (options.isConstantFolding())
+            System.out.println("Constant folding: " + numFoldedCommands.get() + " commands removed");
+
+        if (options.getMaxInlineSize() > 0)
+            System.out.println("Inlining: " + numInlinedCalls + " calls inlined");
+
+        if (staticAllocator != null)
+            System.out.println("Static allocation: " + staticAllocator.getNumStatics() + " statics allocated");
+
+        if (options.isDeadFunctionElimination())
+            System.out.println("Dead functions: " + numDeadFunctions + " functions ("
+                    + numDeadCommands + " commands) removed");
+
+        PeepholeOptimizer peepholeOptimizer = codeWriter.getPeepholeOptimizer();
+
+        if (peepholeOptimizer == null)
+            return;
+
+        int total = 0;
+
+        for (Map.Entry<String, Integer> rule : peepholeOptimizer.getHits().entrySet()) {
+            System.out.println("Peephole " + rule.getKey() + ": " + rule.getValue() + " instructions removed");
+            total += rule.getValue();
+        }
+
+        System.out.println("Peephole total: " + total + " instructions removed");
+    }
+
+    /**
+     * Runs the optimization passes that need the whole program, after every
+     * file of a directory has been parsed
+     * @param modules Modules of every file in the program
+     */
+    private void optimizeProgram(List<VMModule> modules) {
+        if (options.getMaxInlineSize() > 0) {
+            Inliner inliner = new Inliner(modules, options.getMaxInlineSize());
+
+            for (VMModule module : modules)
+                inliner.inline(module);
+
+            numInlinedCalls = inliner.getNumInlined();
+        }
+
+        if (options.isDeadFunctionElimination())   // inlining may leave functions without callers
+            removeDeadFunctions(modules);
+
+        if (options.isReducedFrames())
+            findReducedFrameFunctions(modules);
+    }
+
+    /**
+     * Finds the functions that never pop pointer and can be called without
+     * saving THIS and THAT. Sys.init keeps the full frame since the init
+     * code calls it before the program is parsed.
+     * @param modules Modules of every file in the program
+     */
+    private void findReducedFrameFunctions(List<VMModule> modules) {
+        for (VMModule module : modules) {
+            for (VMFunction function : module.getFunctions()) {
+                if (function.getName() == null || function.getName().equals("Sys.init"))
+                    continue;
+
+                boolean popsPointer = false;
+
+                for (int i = 0; i < function.size(); i++) {
+                    if (function.getOpcode(i) == Opcode.POP && function.getSegment(i) == Segment.POINTER)
+                        popsPointer = true;
+                }
+
+                if (!popsPointer)
+                    reducedFrameFunctions.add(function.getName());
+            }
         }
     }
 
+    /**
+     * Removes the functions that cannot be reached from Sys.init
+     * @param modules Modules of every file in the program
+     */
+    private void removeDeadFunctions(List<VMModule> modules) {
+        CallGraph callGraph = new CallGraph(modules);
+
+        if (!callGraph.contains("Sys.init")) // without the entry point every function may be used
+            return;
+
+        Set<String> reachable = callGraph.getReachableFunctions("Sys.init");
+
+        for (VMModule module : modules) {
+            Iterator<VMFunction> functions = module.getFunctions().iterator();
+
+            while (functions.hasNext()) {
+                VMFunction function = functions.next();
+
+                if (function.getName() != null && !reachable.contains(function.getName())) {
+                    functions.remove();
+                    numDeadFunctions++;
+                    numDeadCommands += function.size() + 1;  // commands and the function command
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs a task for every file on the executor and waits for all of them.
+     * The first error in file order is rethrown.
+     * @param executor Executor to run the tasks on
+     * @param files Files to run the task for
+     * @param task Task that is given the index of the file
+     */
+    private static void runForEachFile(ExecutorService executor, File[] files, FileTask task) {
+        List<Future<?>> results = new ArrayList<>();
+
+        for (int i = 0; i < files.length; i++) {
+            int index = i;
+
+            results.add(executor.submit(() -> {
+                task.run(index);
+                return null;
+            }));
+        }
+
+        for (int i = 0; i < files.length; i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {    // rethrow the error of the file
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+
+                throw new IllegalStateException("Unable to translate " + files[i].getName() + "!");
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Translation was interrupted!");
+            }
+        }
+    }
+
+    /**
+     * Parses a VM file into the intermediate representation and runs the
+     * enabled optimization passes on it
+     * @param file File to be parsed
+     * @return Parsed module
+     */
+    private VMModule parseFile(File file) {
+        Parser parser = new Parser(file);
+        VMModule module = parser.parseModule();
+
+        try {
+            parser.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to close file!");
+        }
+
+        if (options.isConstantFolding()) {
+            ConstantFolder folder = new ConstantFolder();
+            folder.fold(module);
+            numFoldedCommands.addAndGet(folder.getNumRemoved());
+        }
+
+        return module;
+    }
+
     /**
      * Closes the buffered writer
      */